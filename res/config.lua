@@ -8,5 +8,35 @@ config = {
     ["lastServerIp"] = "127.0.0.1",
     ["lastServerPort"] = 1337,
 
-    ["serverPort"] = 1337
+    ["serverPort"] = 1337,
+    ["serverEngine"] = "socket",
+    ["serverSockets"] = 1,
+    ["serverTickRate"] = 30,
+    ["sessionTimeout"] = 10000,
+    ["maxRooms"] = 256,
+    ["roomWorkers"] = 4,
+
+    ["socketReceiveBuffer"] = 262144,
+    ["socketSendBuffer"] = 262144,
+    ["clientBandwidth"] = 16384,
+
+    ["interestRadius"] = 2200,
+    ["interestHysteresis"] = 200,
+
+    ["metricsInterval"] = 10000,
+    ["metricsCsv"] = "",
+
+    ["linkConditioner"] = "none",
+    ["linkLatency"] = 0,
+    ["linkJitter"] = 0,
+    ["linkLoss"] = 0,
+    ["linkDuplicate"] = 0,
+    ["linkReorder"] = 0,
+    ["linkBandwidth"] = 0,
+    ["linkSeed"] = 0,
+
+    ["interpolationDelay"] = 100,
+    ["maxExtrapolation"] = 250,
+    ["stateMinRate"] = 2,
+    ["stateMaxRate"] = 20
 }
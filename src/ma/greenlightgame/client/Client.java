@@ -3,17 +3,21 @@ package ma.greenlightgame.client;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 
 import ma.greenlightgame.client.entity.platform.EntityPlatform;
 import ma.greenlightgame.client.entity.player.EntityPlayer;
 import ma.greenlightgame.client.entity.player.EntityPlayerMechGuy;
 import ma.greenlightgame.client.level.Level;
 import ma.greenlightgame.client.level.Level1;
+import ma.greenlightgame.client.network.ServerClock;
 import ma.greenlightgame.client.network.UDPClient;
 import ma.greenlightgame.client.network.UDPClientHandler;
 import ma.greenlightgame.common.config.Config;
+import ma.greenlightgame.common.network.Connection;
+import ma.greenlightgame.common.network.Connection.IPacketSender;
+import ma.greenlightgame.common.network.NetworkCodec;
 import ma.greenlightgame.common.network.NetworkData;
-import ma.greenlightgame.common.network.NetworkData.NetworkMessage;
 import ma.greenlightgame.common.screen.Screen;
 import ma.greenlightgame.common.screen.ScreenMainMenu;
 
@@ -21,38 +25,65 @@ public class Client {
 	private static UDPClientHandler udpClientHandler;
 	private static UDPClient udpClient;
 	
+	private static NetworkCodec codec;
+	
+	// Replaced by the game thread, read by the network thread
+	private static volatile Connection connection;
+	
+	private static ServerClock clock;
+	
 	private static Screen screen;
 	
 	private static boolean ingame;
 	
+	private static long lastHeartbeat;
+	
+	// Something was queued this frame, otherwise a packet only goes out when the connection needs
+	// one. The local player decides how often its state and commands are queued.
+	private static boolean flushPending;
+	
+	// Newest snapshot to ack, rides along with the next packet
+	private static int snapshotAck;
+	private static boolean snapshotAckPending;
+	
 	private Level level;
 	
 	public Client() {
 		EntityPlayerMechGuy.load();
 		
 		udpClientHandler = new UDPClientHandler(this);
+		codec = new NetworkCodec();
+		clock = new ServerClock();
 		screen = new ScreenMainMenu();
 		
 		ingame = false;
 	}
 	
-	public void update(float delta) {		
+	public void update(float delta) {
+		if(udpClient != null) {
+			udpClient.update();
+		}
+		
+		udpClientHandler.update();
+		
 		if(ingame) {
 			if(level != null) {
 				if(!level.loaded()) {
 					level.load();
 				}
-								
+				
 				final EntityPlayer[] players = udpClientHandler.getPlayers();
 				final EntityPlatform[] walls = level.getWalls();
+				final long renderTime = System.nanoTime()
+						- Config.getInt(Config.INTERPOLATION_DELAY) * 1000000L;
 				
 				for(EntityPlayer player : players) {
 					if(player != null) {
 						if(player.isAlive()) {
-							player.update(delta);
-							
 							if(player.isControllable()) {
-								player.getController().checkCollision(walls);
+								player.getController().update(delta, walls);
+							} else {
+								player.interpolate(renderTime);
 							}
 						}
 					}
@@ -65,6 +96,41 @@ public class Client {
 				screen.update();
 			}
 		}
+		
+		sendHeartbeat();
+		sendPing();
+		
+		if(flushPending || (connection != null && connection.isFlushDue(System.nanoTime()))) {
+			flush();
+		}
+	}
+	
+	// Keeps the session alive while there is nothing else to send
+	private void sendHeartbeat() {
+		if(!UDPClientHandler.isAccepted())
+			return;
+		
+		final long now = System.nanoTime();
+		
+		if(now - lastHeartbeat >= NetworkData.HEARTBEAT_INTERVAL * 1000000L) {
+			lastHeartbeat = now;
+			
+			sendUDP(codec.encodeHeartbeat(UDPClientHandler.getToken()));
+		}
+	}
+	
+	// Keeps the clock in sync with the server
+	private void sendPing() {
+		if(!UDPClientHandler.isAccepted())
+			return;
+		
+		final long now = System.nanoTime();
+		final int sequence = clock.nextPing(now);
+		
+		if(sequence >= 0) {
+			sendUDP(codec.encodePing(sequence, NetworkCodec.toTime(now),
+					clock.getRoundTripTime(), clock.getJitter()));
+		}
 	}
 	
 	public void render() {
@@ -122,26 +188,67 @@ public class Client {
 		return level;
 	}
 	
-	public static void sendUDP(int type, Object... message) {
-		String msg = Integer.toString(type) + NetworkData.SEPERATOR;
+	// Queues the message until the end of the frame
+	public static void sendUDP(ByteBuffer message) {
+		if(connection == null)
+			return;
 		
-		for(Object element : message) {
-			msg += element + NetworkData.SEPERATOR;
-		}
+		connection.send(message);
+		flushPending = true;
+	}
+	
+	// Queues the message until the end of the frame, it is resent until the server acks it.
+	// Returns false if it couldn't be queued.
+	public static boolean sendReliable(ByteBuffer message) {
+		if(connection == null)
+			return false;
 		
-		try {
-			udpClient.send(msg.getBytes("UTF-8"));
-		} catch(IOException e) {
-			e.printStackTrace();
+		flushPending = true;
+		
+		return connection.sendReliable(message);
+	}
+	
+	// Acks are only sent for the newest snapshot, they don't cause a packet on their own
+	public static void ackSnapshot(int tick) {
+		snapshotAck = tick;
+		snapshotAckPending = true;
+	}
+	
+	public static void flush() {
+		if(connection == null)
+			return;
+		
+		if(snapshotAckPending) {
+			connection.send(codec.encodeSnapshotAck(snapshotAck));
+			snapshotAckPending = false;
 		}
+		
+		connection.flush(System.nanoTime());
+		flushPending = false;
 	}
 	
 	public static void connect(InetAddress address, int port) {
+		connect(address, port, NetworkData.DEFAULT_ROOM);
+	}
+	
+	public static void connect(InetAddress address, int port, int roomId) {
 		disconnect();
 		
 		try {
-			udpClient = new UDPClient(address, port, udpClientHandler);
-			Client.sendUDP(NetworkMessage.CLIENT_REQUEST_CONNECT);
+			udpClient = UDPClient.create(address, port, udpClientHandler);
+			connection = new Connection(new IPacketSender() {
+				@Override
+				public void sendPacket(ByteBuffer packet) {
+					try {
+						udpClient.send(packet);
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			
+			Client.sendReliable(codec.encodeConnectRequest(roomId));
+			Client.flush();
 		} catch(SocketException e) {
 			e.printStackTrace();
 		}
@@ -152,6 +259,11 @@ public class Client {
 			udpClient.close();
 		}
 		
+		connection = null;
+		flushPending = false;
+		snapshotAckPending = false;
+		
+		clock.reset();
 		udpClientHandler.disconnect();
 	}
 	
@@ -159,6 +271,19 @@ public class Client {
 		Client.screen = screen;
 	}
 	
+	public static Connection getConnection() {
+		return connection;
+	}
+	
+	// Time and tick of the server as far as the client can tell
+	public static ServerClock getClock() {
+		return clock;
+	}
+	
+	public static NetworkCodec getCodec() {
+		return codec;
+	}
+	
 	public static UDPClientHandler getUDPHandler() {
 		return udpClientHandler;
 	}
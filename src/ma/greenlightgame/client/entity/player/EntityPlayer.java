@@ -8,16 +8,22 @@ import ma.greenlightgame.client.entity.Entity;
 import ma.greenlightgame.client.entity.platform.EntityPlatform;
 import ma.greenlightgame.client.renderer.Renderer;
 import ma.greenlightgame.client.renderer.Texture;
+import ma.greenlightgame.common.config.Config;
 import ma.greenlightgame.common.utils.Utils;
 
 public class EntityPlayer extends Entity {
 	private static final float GRAVITY = 0.9f;
 	private static final float TERMINAL_VELOCITY = -13f;
 	
+	private static final int INTERPOLATION_SAMPLES = 32;
+	
 	protected List<EntityPlatform> wallColliders;
 	
 	protected EntityPlayerControllable controller;
 	
+	// States of remote players
+	protected InterpolationBuffer interpolation;
+	
 	protected Texture head;
 	protected Texture body;
 	
@@ -34,6 +40,8 @@ public class EntityPlayer extends Entity {
 		super();
 		
 		wallColliders = new ArrayList<EntityPlatform>();
+		interpolation = new InterpolationBuffer(INTERPOLATION_SAMPLES,
+				Config.getInt(Config.MAX_EXTRAPOLATION));
 		
 		this.head = head;
 		this.body = body;
@@ -55,10 +63,11 @@ public class EntityPlayer extends Entity {
 		if(velocityY > TERMINAL_VELOCITY) {
 			velocityY -= GRAVITY * delta;
 		}
-		
-		if(controller != null) {
-			controller.update(delta);
-		}
+	}
+	
+	// Remote players are shown where they were at the given time
+	public void interpolate(long time) {
+		interpolation.apply(time, this);
 	}
 	
 	@Override
@@ -137,6 +146,10 @@ public class EntityPlayer extends Entity {
 		return controller;
 	}
 	
+	public InterpolationBuffer getInterpolation() {
+		return interpolation;
+	}
+	
 	public float getVelocityX() {
 		return velocityX;
 	}
@@ -1,48 +1,281 @@
 package ma.greenlightgame.client.entity.player;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import ma.greenlightgame.client.Client;
 import ma.greenlightgame.client.entity.platform.EntityPlatform;
+import ma.greenlightgame.client.entity.player.PredictionBuffer.Prediction;
 import ma.greenlightgame.client.input.Input;
 import ma.greenlightgame.client.input.Input.KeyCode;
+import ma.greenlightgame.client.input.Input.MouseButton;
 import ma.greenlightgame.client.network.UDPClientHandler;
 import ma.greenlightgame.client.physics.Physics;
 import ma.greenlightgame.client.utils.DebugDraw;
-import ma.greenlightgame.common.network.NetworkData.NetworkMessage;
+import ma.greenlightgame.common.config.Config;
+import ma.greenlightgame.common.network.Connection;
+import ma.greenlightgame.common.network.NetworkCodec;
+import ma.greenlightgame.common.network.NetworkData;
+import ma.greenlightgame.common.network.NetworkData.InputButton;
+import ma.greenlightgame.common.network.Quantizer;
+import ma.greenlightgame.common.utils.Utils;
 
+// Moves the local player without waiting for the server. Every input is numbered and kept until
+// the server confirms it, if the confirmed state differs from what we predicted the player is
+// rewound to it and the newer inputs are applied again.
 public class EntityPlayerControllable {
+	private static final int PREDICTION_HISTORY = 128;
+	
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	
 	private EntityPlayer player;
 	
+	private PredictionBuffer predictions;
+	
+	// The full state only goes out when it is worth it
+	private SendRateController sendRate;
+	
+	private EntityPlatform[] walls;
+	
+	// Walls the player touched before a replay, to tell the walls only what changed
+	private List<EntityPlatform> replayColliders;
+	
+	// Newest changes of the commands, newest first. They go out at most once per server tick,
+	// each change INPUT_REDUNDANCY times.
+	private int[] commandSequences;
+	private int[] commandButtons;
+	private float[] commandAims;
+	private int commandCount;
+	private int commandRepeats;
+	
+	private final long commandInterval;
+	private long lastCommandSend;
+	
 	private float moveSpeed;
 	private float jumpForce;
 	
-	private boolean hasChanged;
 	private boolean isJumping;
 	private boolean isFalling;
 	
+	// Inputs that are applied again don't fire the callbacks of the player and the walls
+	private boolean replaying;
+	
 	public EntityPlayerControllable(EntityPlayer player) {
 		this.player = player;
 		
+		predictions = new PredictionBuffer(PREDICTION_HISTORY);
+		sendRate = new SendRateController(Config.getInt(Config.STATE_MIN_RATE),
+				Config.getInt(Config.STATE_MAX_RATE));
+		walls = new EntityPlatform[0];
+		replayColliders = new ArrayList<EntityPlatform>();
+		
+		commandSequences = new int[NetworkData.INPUT_REDUNDANCY];
+		commandButtons = new int[NetworkData.INPUT_REDUNDANCY];
+		commandAims = new float[NetworkData.INPUT_REDUNDANCY];
+		commandInterval = NANOS_PER_SECOND / Math.max(1, Config.getInt(Config.SERVER_TICK_RATE));
+		
 		isJumping = false;
 		isFalling = true;
 	}
 	
-	public void update(float delta) {
-		handleInput(delta);
+	public void update(float delta, EntityPlatform[] walls) {
+		this.walls = walls;
+		
+		final Prediction prediction = predictions.next();
+		
+		handleInput(prediction, delta);
+		simulate(prediction);
 		
 		if(player.getY() + player.totalHeight / 2 < 0) {
 			player.onDead();
 		}
 		
-		if(hasChanged) {
-			Client.sendUDP(NetworkMessage.PLAYER_INFO, UDPClientHandler.getId(), player.getX(), player.getY(), player.getVelocityX(), player.getVelocityY(), player.getRotation());
+		final long now = System.nanoTime();
+		
+		recordCommand(prediction);
+		sendCommands(now);
+		
+		final Connection connection = Client.getConnection();
+		
+		if(connection != null) {
+			sendRate.adapt(connection);
+		}
+		
+		if(sendRate.update(now, player, isJumping, isFalling)) {
+			Client.sendUDP(Client.getCodec().encodePlayerState(UDPClientHandler.getId(),
+					prediction.getSequence(), player.getX(), player.getY(),
+					player.getVelocityX(), player.getVelocityY(), player.getRotation()));
+		}
+	}
+	
+	// Only keeps the commands that differ from the previous ones, an aim counts as changed once
+	// it is a snapshot step away
+	private void recordCommand(Prediction prediction) {
+		final Quantizer aim = NetworkCodec.SNAPSHOT_ROTATION;
+		
+		if(commandCount > 0 && prediction.buttons == commandButtons[0]
+				&& aim.quantize(prediction.aim) == aim.quantize(commandAims[0]))
+			return;
+		
+		System.arraycopy(commandSequences, 0, commandSequences, 1, commandSequences.length - 1);
+		System.arraycopy(commandButtons, 0, commandButtons, 1, commandButtons.length - 1);
+		System.arraycopy(commandAims, 0, commandAims, 1, commandAims.length - 1);
+		
+		commandSequences[0] = prediction.getSequence();
+		commandButtons[0] = prediction.buttons;
+		commandAims[0] = prediction.aim;
+		
+		commandCount = Math.min(commandCount + 1, NetworkData.INPUT_REDUNDANCY);
+		commandRepeats = NetworkData.INPUT_REDUNDANCY;
+	}
+	
+	// Every message repeats the newest changes, so losing a packet loses nothing
+	private void sendCommands(long now) {
+		if(commandRepeats == 0 || now - lastCommandSend < commandInterval)
+			return;
+		
+		commandRepeats--;
+		lastCommandSend = now;
+		
+		Client.sendUDP(Client.getCodec().encodePlayerInput(commandCount, commandSequences,
+				commandButtons, commandAims));
+	}
+	
+	// The server state after it applied the input with the given sequence
+	public void reconcile(int sequence, int x, int y, float velocityX, float velocityY) {
+		final Prediction confirmed = predictions.get(sequence);
+		
+		if(confirmed == null)
+			return;
+		
+		predictions.acknowledge(sequence);
+		
+		// The server state went through the snapshot quantizers, ours has to as well. Velocities
+		// were rounded to the PLAYER_STATE step first, rounding only once can land on the other
+		// side of a half step.
+		if(matches(NetworkCodec.SNAPSHOT_X, confirmed.x, x)
+				&& matches(NetworkCodec.SNAPSHOT_Y, confirmed.y, y)
+				&& matches(NetworkCodec.SNAPSHOT_VELOCITY_X, sent(confirmed.velocityX), velocityX)
+				&& matches(NetworkCodec.SNAPSHOT_VELOCITY_Y, sent(confirmed.velocityY), velocityY))
+			return;
+		
+		player.setX(x);
+		player.setY(y);
+		player.setVelocityX(velocityX);
+		player.setVelocityY(velocityY);
+		
+		isJumping = confirmed.jumping;
+		isFalling = confirmed.falling;
+		
+		replayColliders.clear();
+		replayColliders.addAll(player.wallColliders);
+		
+		final boolean wasAttacking = player.attacking;
+		
+		player.wallColliders.clear();
+		player.wallColliders.addAll(confirmed.colliders);
+		player.attacking = confirmed.attacking;
+		
+		final int newest = predictions.getNewest();
+		
+		replaying = true;
+		
+		for(int i = sequence + 1; i - newest <= 0; i++) {
+			simulate(predictions.get(i));
+		}
+		
+		replaying = false;
+		
+		// Go back to where the player was and fire the callbacks for the difference only
+		final boolean attacking = player.attacking;
+		player.attacking = wasAttacking;
+		
+		if(attacking != wasAttacking) {
+			player.onAttackChange(Utils.getSide(player.getRotation()), attacking);
+		}
+		
+		for(EntityPlatform wall : replayColliders) {
+			if(!player.wallColliders.contains(wall)) {
+				player.wallColliders.add(wall);
+				player.onCollisionExit(wall);
+			}
+		}
+		
+		for(int i = player.wallColliders.size() - 1; i >= 0; i--) {
+			final EntityPlatform wall = player.wallColliders.get(i);
+			
+			if(!replayColliders.contains(wall)) {
+				player.wallColliders.remove(i);
+				player.onCollisionEnter(wall);
+			}
 		}
 	}
 	
+	private static boolean matches(Quantizer quantizer, float predicted, float confirmed) {
+		return quantizer.quantize(predicted) == quantizer.quantize(confirmed);
+	}
+	
+	// A velocity as the server got it in PLAYER_STATE
+	private static float sent(float velocity) {
+		return NetworkCodec.dequantizeVelocity(NetworkCodec.quantizeVelocity(velocity));
+	}
+	
+	// The server moved the player, nothing we predicted before applies anymore
+	public void resetPrediction() {
+		predictions.clear();
+		sendRate.reset();
+		
+		commandCount = 0;
+		commandRepeats = 0;
+	}
+	
 	public void drawDebug() {
 		DebugDraw.drawLine(player.getX(), player.getY(), Input.getMouseX(), Input.getMouseY());
 	}
 	
-	public void checkCollision(EntityPlatform[] walls) {
+	// Runs a single input through the movement code and stores the result
+	private void simulate(Prediction prediction) {
+		player.update(prediction.delta);
+		
+		if((prediction.buttons & InputButton.RIGHT) != 0) {
+			move(moveSpeed);
+		} else if((prediction.buttons & InputButton.LEFT) != 0) {
+			move(-moveSpeed);
+		} else {
+			move(0);
+		}
+		
+		player.lookAt(prediction.lookX, prediction.lookY);
+		
+		if((prediction.buttons & InputButton.JUMP) != 0) {
+			jump();
+		}
+		
+		final boolean attacking = (prediction.buttons & InputButton.ATTACK) != 0;
+		
+		if(attacking != player.isAttacking()) {
+			if(replaying) {
+				player.attacking = attacking;
+			} else {
+				player.onAttackChange(Utils.getSide(player.getRotation()), attacking);
+			}
+		}
+		
+		checkCollision(walls);
+		
+		prediction.aim = player.getRotation();
+		prediction.x = player.getX();
+		prediction.y = player.getY();
+		prediction.velocityX = player.getVelocityX();
+		prediction.velocityY = player.getVelocityY();
+		prediction.jumping = isJumping;
+		prediction.falling = isFalling;
+		prediction.attacking = player.attacking;
+		prediction.colliders.clear();
+		prediction.colliders.addAll(player.wallColliders);
+	}
+	
+	private void checkCollision(EntityPlatform[] walls) {
 		for(EntityPlatform wall : walls) {
 			final boolean wasColliding = player.wallColliders.contains(wall);
 			final boolean isColliding = Physics.intersecs(player, wall);
@@ -58,7 +291,11 @@ public class EntityPlayerControllable {
 				boolean collidingBottom = bottom >= wallBottom;
 				
 				if(!wasColliding && isColliding) {
-					player.onCollisionEnter(wall);
+					if(replaying) {
+						player.wallColliders.add(wall);
+					} else {
+						player.onCollisionEnter(wall);
+					}
 					
 					if(collidingBottom) {
 						isJumping = false;
@@ -94,32 +331,41 @@ public class EntityPlayerControllable {
 						player.setVelocityX(0);
 					}
 				} else if(wasColliding && !isColliding) {
-					player.onCollisionExit(wall);
+					if(replaying) {
+						player.wallColliders.remove(wall);
+					} else {
+						player.onCollisionExit(wall);
+					}
 				}
 			}
 		}
 	}
 	
-	private void handleInput(float delta) {
+	private void handleInput(Prediction prediction, float delta) {
+		int buttons = 0;
+		
 		if(Input.getKey(KeyCode.D) && !Input.getKey(KeyCode.A)) {
-			move(moveSpeed);
+			buttons |= InputButton.RIGHT;
 		} else if(!Input.getKey(KeyCode.D) && Input.getKey(KeyCode.A)) {
-			move(-moveSpeed);
-		} else {
-			move(0);
+			buttons |= InputButton.LEFT;
 		}
 		
-		player.lookAt(Input.getMouseX(), Input.getMouseY());
-		
 		if(Input.isKeyDown(KeyCode.W) || Input.isKeyDown(KeyCode.SPACE)) {
-			jump();
+			buttons |= InputButton.JUMP;
+		}
+		
+		if(Input.getMouse(MouseButton.LEFT)) {
+			buttons |= InputButton.ATTACK;
 		}
+		
+		prediction.buttons = buttons;
+		prediction.lookX = Input.getMouseX();
+		prediction.lookY = Input.getMouseY();
+		prediction.delta = delta;
 	}
 	
 	private void move(float amount) {
 		player.setVelocityX(amount);
-		
-		hasChanged = true;
 	}
 	
 	private void jump() {
@@ -127,7 +373,6 @@ public class EntityPlayerControllable {
 			player.setVelocityY(jumpForce);
 			
 			isJumping = true;
-			hasChanged = true;
 		}
 	}
 	
@@ -0,0 +1,146 @@
+package ma.greenlightgame.client.entity.player;
+
+import ma.greenlightgame.common.config.Config;
+
+// Timestamped states of a remote player. The player is shown a little in the past so there are
+// usually two states to interpolate between, when the states run out it keeps moving with its
+// last velocity for a limited time.
+public class InterpolationBuffer {
+	private static final long NANOS_PER_MILLI = 1000000L;
+	
+	// Velocities are in units per frame
+	private static final float FRAMES_PER_NANO = Config.FRAMERATE / 1000000000f;
+	
+	private final long[] times;
+	
+	private final int[] x;
+	private final int[] y;
+	private final float[] velocityX;
+	private final float[] velocityY;
+	private final float[] rotation;
+	
+	private final long maxExtrapolation;
+	
+	// Index of the newest sample
+	private int newest;
+	
+	private int count;
+	
+	public InterpolationBuffer(int size, int maxExtrapolation) {
+		times = new long[size];
+		x = new int[size];
+		y = new int[size];
+		velocityX = new float[size];
+		velocityY = new float[size];
+		rotation = new float[size];
+		
+		this.maxExtrapolation = maxExtrapolation * NANOS_PER_MILLI;
+	}
+	
+	// Samples have to be added in time order, older ones are dropped
+	public void add(long time, int x, int y, float velocityX, float velocityY,
+			float rotation) {
+		if(count > 0 && time - times[newest] <= 0)
+			return;
+		
+		newest = (newest + 1) % times.length;
+		
+		if(count < times.length) {
+			count++;
+		}
+		
+		times[newest] = time;
+		this.x[newest] = x;
+		this.y[newest] = y;
+		this.velocityX[newest] = velocityX;
+		this.velocityY[newest] = velocityY;
+		this.rotation[newest] = rotation;
+	}
+	
+	// Keeps the player where it was last seen instead of extrapolating
+	public void stop(long time) {
+		if(count == 0)
+			return;
+		
+		add(time, x[newest], y[newest], 0, 0, rotation[newest]);
+	}
+	
+	public void clear() {
+		count = 0;
+	}
+	
+	// Moves the player to where it was at the given time, returns false without samples
+	public boolean apply(long time, EntityPlayer player) {
+		if(count == 0)
+			return false;
+		
+		int to = newest;
+		
+		// Extrapolate past the newest sample, for a limited time
+		if(time - times[to] >= 0) {
+			final long elapsed = Math.min(time - times[to], maxExtrapolation);
+			final float frames = elapsed * FRAMES_PER_NANO;
+			
+			set(player, x[to] + velocityX[to] * frames, y[to] + velocityY[to] * frames,
+					velocityX[to], velocityY[to], rotation[to]);
+			
+			return true;
+		}
+		
+		for(int i = 1; i < count; i++) {
+			final int from = (newest - i + times.length) % times.length;
+			
+			if(time - times[from] >= 0) {
+				final float t = (float)(time - times[from]) / (times[to] - times[from]);
+				
+				set(player, lerp(x[from], x[to], t), lerp(y[from], y[to], t),
+						lerp(velocityX[from], velocityX[to], t),
+						lerp(velocityY[from], velocityY[to], t),
+						lerpAngle(rotation[from], rotation[to], t));
+				
+				return true;
+			}
+			
+			to = from;
+		}
+		
+		// Older than anything we have
+		set(player, x[to], y[to], velocityX[to], velocityY[to], rotation[to]);
+		
+		return true;
+	}
+	
+	private static void set(EntityPlayer player, float x, float y, float velocityX,
+			float velocityY, float rotation) {
+		player.setX(Math.round(x));
+		player.setY(Math.round(y));
+		player.setVelocityX(velocityX);
+		player.setVelocityY(velocityY);
+		player.setRotation(rotation);
+	}
+	
+	private static float lerp(float from, float to, float t) {
+		return from + (to - from) * t;
+	}
+	
+	// Takes the short way around, angles are in degrees between 0 and 360
+	private static float lerpAngle(float from, float to, float t) {
+		float difference = (to - from) % 360;
+		
+		if(difference > 180) {
+			difference -= 360;
+		} else if(difference < -180) {
+			difference += 360;
+		}
+		
+		float angle = from + difference * t;
+		
+		if(angle < 0) {
+			angle += 360;
+		} else if(angle >= 360) {
+			angle -= 360;
+		}
+		
+		return angle;
+	}
+}
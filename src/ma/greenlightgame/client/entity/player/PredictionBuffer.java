@@ -0,0 +1,99 @@
+package ma.greenlightgame.client.entity.player;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ma.greenlightgame.client.entity.platform.EntityPlatform;
+
+// Inputs the server hasn't confirmed yet, with the state each of them resulted in
+public class PredictionBuffer {
+	private final Prediction[] predictions;
+	
+	// Sequence of the newest input, inputs are numbered from 1
+	private int newest;
+	
+	private int count;
+	
+	public PredictionBuffer(int size) {
+		predictions = new Prediction[size];
+		
+		for(int i = 0; i < size; i++) {
+			predictions[i] = new Prediction();
+		}
+	}
+	
+	// Claims the slot for the next input, overwriting the oldest one if the buffer is full
+	public Prediction next() {
+		newest++;
+		
+		if(count < predictions.length) {
+			count++;
+		}
+		
+		final Prediction prediction = predictions[slot(newest)];
+		prediction.sequence = newest;
+		
+		return prediction;
+	}
+	
+	// Returns null if the input was confirmed already or has been overwritten
+	public Prediction get(int sequence) {
+		final int age = newest - sequence;
+		
+		if(age < 0 || age >= count)
+			return null;
+		
+		return predictions[slot(sequence)];
+	}
+	
+	// Forgets the input and everything before it
+	public void acknowledge(int sequence) {
+		final int age = newest - sequence;
+		
+		if(age >= 0 && age < count) {
+			count = age;
+		}
+	}
+	
+	// Keeps numbering where it was, states the server has from before stay older
+	public void clear() {
+		count = 0;
+	}
+	
+	public int getNewest() {
+		return newest;
+	}
+	
+	public int getCount() {
+		return count;
+	}
+	
+	private int slot(int sequence) {
+		return (sequence & Integer.MAX_VALUE) % predictions.length;
+	}
+	
+	public static class Prediction {
+		private int sequence;
+		
+		// Input, buttons as in InputButton
+		int buttons;
+		int lookX;
+		int lookY;
+		float delta;
+		
+		// Resulting state
+		float aim;
+		int x;
+		int y;
+		float velocityX;
+		float velocityY;
+		boolean jumping;
+		boolean falling;
+		boolean attacking;
+		final List<EntityPlatform> colliders = new ArrayList<EntityPlatform>();
+		
+		public int getSequence() {
+			return sequence;
+		}
+	}
+}
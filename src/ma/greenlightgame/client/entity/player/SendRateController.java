@@ -0,0 +1,114 @@
+package ma.greenlightgame.client.entity.player;
+
+import ma.greenlightgame.common.network.Connection;
+
+// Decides when the state of the local player goes out. Noticeable changes are sent at up to the
+// max rate, landing or jumping right away, and an idle player only at the min rate. A slow or
+// lossy link pushes the rate for changes down towards the min rate.
+public class SendRateController {
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	private static final long NANOS_PER_MILLI = 1000000L;
+	
+	// Smallest changes worth sending
+	private static final int POSITION_THRESHOLD = 2;
+	private static final float VELOCITY_THRESHOLD = 0.5f;
+	private static final float ROTATION_THRESHOLD = 3;
+	
+	// Backing off starts at the first value and is complete at the second
+	private static final long RTT_LOW = 150 * NANOS_PER_MILLI;
+	private static final long RTT_HIGH = 500 * NANOS_PER_MILLI;
+	private static final float LOSS_LOW = 0.02f;
+	private static final float LOSS_HIGH = 0.2f;
+	
+	private final long minInterval;
+	private final long maxInterval;
+	
+	// Interval between changes, between the two above
+	private long interval;
+	
+	private boolean hasSent;
+	private long lastSend;
+	
+	// State that was sent last
+	private int x;
+	private int y;
+	private float velocityX;
+	private float velocityY;
+	private float rotation;
+	private boolean jumping;
+	private boolean falling;
+	
+	public SendRateController(int minRate, int maxRate) {
+		minInterval = NANOS_PER_SECOND / Math.max(1, maxRate);
+		maxInterval = Math.max(minInterval, NANOS_PER_SECOND / Math.max(1, minRate));
+		
+		interval = minInterval;
+	}
+	
+	// Returns true if the state should be sent now, it is then remembered as the last one sent
+	public boolean update(long now, EntityPlayer player, boolean jumping, boolean falling) {
+		if(hasSent && !shouldSend(now - lastSend, player, jumping, falling))
+			return false;
+		
+		hasSent = true;
+		lastSend = now;
+		
+		x = player.getX();
+		y = player.getY();
+		velocityX = player.getVelocityX();
+		velocityY = player.getVelocityY();
+		rotation = player.getRotation();
+		this.jumping = jumping;
+		this.falling = falling;
+		
+		return true;
+	}
+	
+	// Measured on the connection the state is sent over
+	public void adapt(Connection connection) {
+		final float rttFactor = factor(connection.getRoundTripTime(), RTT_LOW, RTT_HIGH);
+		final float lossFactor = factor(connection.getPacketLoss(), LOSS_LOW, LOSS_HIGH);
+		
+		interval = minInterval
+				+ (long)((maxInterval - minInterval) * Math.max(rttFactor, lossFactor));
+	}
+	
+	// Sends the next state right away, whether it changed or not
+	public void reset() {
+		hasSent = false;
+	}
+	
+	private boolean shouldSend(long elapsed, EntityPlayer player, boolean jumping,
+			boolean falling) {
+		if(elapsed < minInterval)
+			return false;
+		
+		if(jumping != this.jumping || falling != this.falling || elapsed >= maxInterval)
+			return true;
+		
+		if(elapsed < interval)
+			return false;
+		
+		return Math.abs(player.getX() - x) >= POSITION_THRESHOLD
+				|| Math.abs(player.getY() - y) >= POSITION_THRESHOLD
+				|| Math.abs(player.getVelocityX() - velocityX) >= VELOCITY_THRESHOLD
+				|| Math.abs(player.getVelocityY() - velocityY) >= VELOCITY_THRESHOLD
+				|| angleBetween(player.getRotation(), rotation) >= ROTATION_THRESHOLD;
+	}
+	
+	private static float factor(float value, float low, float high) {
+		if(value <= low)
+			return 0;
+		
+		if(value >= high)
+			return 1;
+		
+		return (value - low) / (high - low);
+	}
+	
+	private static float angleBetween(float a, float b) {
+		final float difference = Math.abs(a - b) % 360;
+		
+		return difference > 180 ? 360 - difference : difference;
+	}
+}
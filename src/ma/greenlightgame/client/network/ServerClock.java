@@ -0,0 +1,186 @@
+package ma.greenlightgame.client.network;
+
+import ma.greenlightgame.common.network.NetworkCodec;
+
+// Estimates the clock of the server from pings, the way NTP does. Every exchange gives the round
+// trip time and the offset between the clocks, assuming the way there took as long as the way
+// back. Queueing only ever adds delay, so of the last few exchanges the one with the shortest
+// round trip has the best offset. The clock slews towards it instead of jumping, unless it is far
+// off. Times are FIELD_TIME values, microseconds that wrap around, so all arithmetic on them
+// wraps as well. Pongs are handled on the network thread as they arrive, the rest is asked by
+// the game thread.
+public class ServerClock {
+	private static final long NANOS_PER_MILLI = 1000000L;
+	private static final long NANOS_PER_MICRO = 1000L;
+	
+	private static final int SAMPLES = 8;
+	
+	// Pings go out quickly until there are enough samples
+	private static final long SYNC_INTERVAL = 100 * NANOS_PER_MILLI;
+	private static final long PING_INTERVAL = 1000 * NANOS_PER_MILLI;
+	
+	// In microseconds, offsets further off are stepped to right away
+	private static final int STEP_THRESHOLD = 50000;
+	private static final int MAX_SLEW = 1000;
+	
+	private static final float RTT_SMOOTHING = 1 / 8f;
+	private static final float JITTER_SMOOTHING = 1 / 16f;
+	
+	private final int[] roundTripTimes;
+	private final int[] offsets;
+	
+	private int samples;
+	private int nextSample;
+	
+	// Server time is local time plus the offset
+	private int offset;
+	
+	private float roundTripTime;
+	private float jitter;
+	
+	private int pingSequence;
+	private long lastPing;
+	
+	// Tick of the newest snapshot, the time it started on the server and the time between ticks
+	private boolean hasTick;
+	private int tick;
+	private int tickTime;
+	private float tickInterval;
+	
+	public ServerClock() {
+		roundTripTimes = new int[SAMPLES];
+		offsets = new int[SAMPLES];
+	}
+	
+	// Returns the sequence of the next ping if one should go out now, or -1
+	public synchronized int nextPing(long now) {
+		final long interval = samples < SAMPLES ? SYNC_INTERVAL : PING_INTERVAL;
+		
+		if(pingSequence > 0 && now - lastPing < interval)
+			return -1;
+		
+		lastPing = now;
+		
+		return pingSequence++;
+	}
+	
+	public synchronized void onPong(int pingTime, int receiveTime, int sendTime, long now) {
+		final int arrival = NetworkCodec.toTime(now);
+		
+		// Time spent on the network, without the time the server held on to the ping
+		final int sampleRoundTrip = (arrival - pingTime) - (sendTime - receiveTime);
+		
+		if(sampleRoundTrip < 0)
+			return;
+		
+		// Offset plus the delay there, and offset minus the delay back
+		final int there = receiveTime - pingTime;
+		final int back = sendTime - arrival;
+		
+		roundTripTimes[nextSample] = sampleRoundTrip;
+		offsets[nextSample] = there + (back - there) / 2;
+		nextSample = (nextSample + 1) % SAMPLES;
+		
+		if(samples == 0) {
+			roundTripTime = sampleRoundTrip;
+			jitter = sampleRoundTrip / 2f;
+		} else {
+			jitter += (Math.abs(sampleRoundTrip - roundTripTime) - jitter) * JITTER_SMOOTHING;
+			roundTripTime += (sampleRoundTrip - roundTripTime) * RTT_SMOOTHING;
+		}
+		
+		samples = Math.min(samples + 1, SAMPLES);
+		
+		int best = 0;
+		
+		for(int i = 1; i < samples; i++) {
+			if(roundTripTimes[i] < roundTripTimes[best]) {
+				best = i;
+			}
+		}
+		
+		final int difference = offsets[best] - offset;
+		
+		if(samples == 1 || Math.abs(difference) > STEP_THRESHOLD) {
+			offset = offsets[best];
+		} else {
+			offset += Math.max(-MAX_SLEW, Math.min(MAX_SLEW, difference));
+		}
+	}
+	
+	// Ticks have to be sent in order, older ones are ignored
+	public synchronized void onSnapshot(int tick, int time) {
+		if(hasTick) {
+			final int ticks = tick - this.tick;
+			
+			if(ticks <= 0)
+				return;
+			
+			final float interval = (float)(time - tickTime) / ticks;
+			
+			if(tickInterval == 0) {
+				tickInterval = interval;
+			} else {
+				tickInterval += (interval - tickInterval) * RTT_SMOOTHING;
+			}
+		}
+		
+		hasTick = true;
+		
+		this.tick = tick;
+		tickTime = time;
+	}
+	
+	public synchronized void reset() {
+		samples = 0;
+		nextSample = 0;
+		offset = 0;
+		roundTripTime = 0;
+		jitter = 0;
+		pingSequence = 0;
+		
+		hasTick = false;
+		tickInterval = 0;
+	}
+	
+	public synchronized int getServerTime() {
+		return NetworkCodec.toTime(System.nanoTime()) + offset;
+	}
+	
+	// Tick the server is at now, with the part of the current one
+	public synchronized float getServerTick() {
+		if(!hasTick || tickInterval <= 0)
+			return tick;
+		
+		return tick + (getServerTime() - tickTime) / tickInterval;
+	}
+	
+	// Converts a time of the server to System.nanoTime
+	public synchronized long toLocalTime(int serverTime) {
+		final long now = System.nanoTime();
+		
+		return now + (long)(serverTime - offset - NetworkCodec.toTime(now)) * NANOS_PER_MICRO;
+	}
+	
+	// When something the server sent at that time arrives, without the jitter of the network
+	public synchronized long toArrivalTime(int serverTime) {
+		return toLocalTime(serverTime) + (long)(roundTripTime / 2) * NANOS_PER_MICRO;
+	}
+	
+	public synchronized boolean isSynchronized() {
+		return samples > 0;
+	}
+	
+	// In microseconds
+	public synchronized int getOffset() {
+		return offset;
+	}
+	
+	public synchronized int getRoundTripTime() {
+		return (int)roundTripTime;
+	}
+	
+	public synchronized int getJitter() {
+		return (int)jitter;
+	}
+}
@@ -1,97 +1,51 @@
 package ma.greenlightgame.client.network;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.PortUnreachableException;
+import java.net.NetworkInterface;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 
-import ma.greenlightgame.common.network.NetworkData;
+import ma.greenlightgame.common.network.Loopback;
 
-public class UDPClient implements Runnable {
-	private IUDPClientHandler handler;
+public abstract class UDPClient {
+	protected IUDPClientHandler handler;
 	
-	private DatagramSocket socket;
-	
-	private Thread thread;
-	
-	public UDPClient(InetAddress address, int port, IUDPClientHandler handler)
-			throws SocketException {
-		if(port <= 0 || port > NetworkData.MAX_PORT)
-			throw new IndexOutOfBoundsException("The port " + port + " is out of bounds (0-"
-					+ NetworkData.MAX_PORT + ")");
-		
+	protected UDPClient(IUDPClientHandler handler) {
 		this.handler = handler;
-		
-		System.out.println("Connecting to server: " + address.getCanonicalHostName() + ":" + port);
-		
-		socket = new DatagramSocket();
-		socket.setSoTimeout(NetworkData.SO_TIMEOUT);
-		socket.setReceiveBufferSize(NetworkData.BUFFER_SIZE);
-		socket.setSendBufferSize(NetworkData.BUFFER_SIZE);
-		socket.connect(address, port);
-		
-		if(socket == null || socket.isClosed())
-			return;
-		
-		thread = new Thread(this);
-		thread.start();
 	}
 	
-	@Override
-	public void run() {
-		System.out.println("Connected to server");
-		
-		while(!socket.isClosed() && socket.isConnected()) {
-			byte[] buffer = new byte[NetworkData.BUFFER_SIZE];
-			
-			try {
-				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-				socket.receive(packet);
-				
-				handler.onMessageReceived(this, packet.getData());
-			} catch(IOException e) {
-				if(!(e instanceof SocketTimeoutException)) {
-					if(e instanceof PortUnreachableException) {
-						handler.onUnableToConnect(this);
-						close();
-					} else {
-						if(!socket.isClosed()) {
-							e.printStackTrace();
-						}
-					}
-				}
-			}
-		}
-	}
+	public abstract void send(ByteBuffer message) throws IOException;
+	
+	// Called by the game thread every frame
+	public void update() {}
 	
-	public void send(byte[] message) throws IOException {
-		if(socket.isClosed())
-			return;
+	public abstract void close();
+	
+	// Skips the socket when the server runs in this process
+	public static UDPClient create(InetAddress address, int port, IUDPClientHandler handler)
+			throws SocketException {
+		final Loopback loopback = Loopback.get(port);
 		
-		if(message.length >= NetworkData.BUFFER_SIZE)
-			return;
+		if(loopback != null && isLocal(address))
+			return new UDPLoopbackClient(loopback, handler);
 		
-		DatagramPacket packet = new DatagramPacket(message, message.length);
-		socket.send(packet);
+		return new UDPSocketClient(address, port, handler);
 	}
 	
-	public void close() {
-		if(socket.isClosed())
-			return;
-		
-		System.out.println("Disconnecting...");
-		
-		socket.close();
-		thread.interrupt();
-		
-		System.out.println("Disconnected");
+	private static boolean isLocal(InetAddress address) {
+		if(address.isLoopbackAddress() || address.isAnyLocalAddress())
+			return true;
+		
+		try {
+			return NetworkInterface.getByInetAddress(address) != null;
+		} catch(SocketException e) {
+			return false;
+		}
 	}
 	
 	public interface IUDPClientHandler {
-		void onMessageReceived(UDPClient client, byte[] message);
+		void onMessageReceived(UDPClient client, ByteBuffer message);
 		
 		void onUnableToConnect(UDPClient client);
 	}
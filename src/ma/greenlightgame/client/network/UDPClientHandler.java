@@ -1,5 +1,6 @@
 package ma.greenlightgame.client.network;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -8,58 +9,131 @@ import ma.greenlightgame.client.entity.platform.EntityPlatform;
 import ma.greenlightgame.client.entity.player.EntityPlayer;
 import ma.greenlightgame.client.entity.player.EntityPlayerMechGuy;
 import ma.greenlightgame.client.network.UDPClient.IUDPClientHandler;
+import ma.greenlightgame.common.network.Connection;
+import ma.greenlightgame.common.network.Connection.IMessageHandler;
+import ma.greenlightgame.common.network.MessageQueue;
+import ma.greenlightgame.common.network.MessageQueue.IMessageConsumer;
+import ma.greenlightgame.common.network.NetworkCodec;
 import ma.greenlightgame.common.network.NetworkData;
 import ma.greenlightgame.common.network.NetworkData.NetworkMessage;
-import ma.greenlightgame.common.utils.Utils;
+import ma.greenlightgame.common.network.Snapshot;
+import ma.greenlightgame.common.network.SnapshotBuffer;
 
-public class UDPClientHandler implements IUDPClientHandler {
+// Messages are queued by the network thread and handled by the game thread at the start of a
+// frame, so only the game thread touches the players
+public class UDPClientHandler implements IUDPClientHandler, IMessageConsumer<Connection> {
+	private static final int QUEUE_SIZE = 128;
+	
 	private static Map<Integer, EntityPlayer> players;
 	
 	private static int playerId;
+	private static long token;
+	
+	private static boolean accepted;
+	
+	private static int lastSnapshotTick;
+	
+	private static boolean receivedSnapshot;
+	
+	private SnapshotBuffer snapshots;
+	
+	private NetworkCodec codec;
+	
+	private MessageQueue<Connection> messages;
 	
 	private Client client;
 	
+	// Takes the frames of the current connection, replaced when the connection changes
+	private volatile Receiver receiver;
+	
 	public UDPClientHandler(Client client) {
 		players = new HashMap<Integer, EntityPlayer>();
 		
+		snapshots = new SnapshotBuffer(NetworkData.SNAPSHOT_HISTORY, NetworkData.MAX_ID + 1);
+		codec = new NetworkCodec();
+		messages = new MessageQueue<Connection>(QUEUE_SIZE, NetworkData.MAX_MESSAGE_SIZE);
+		
 		this.client = client;
 	}
 	
 	@Override
-	public void onMessageReceived(UDPClient client, byte[] message) {
-		String[] msg = Utils.bytesToString(message).split(NetworkData.SEPERATOR);
+	public void onMessageReceived(UDPClient client, ByteBuffer packet) {
+		final Connection connection = Client.getConnection();
+		
+		if(connection == null)
+			return;
+		
+		Receiver receiver = this.receiver;
+		
+		if(receiver == null || receiver.connection != connection) {
+			receiver = new Receiver(connection);
+			this.receiver = receiver;
+		}
+		
+		if(!connection.receive(packet, receiver)) {
+			System.err.println("Client received a malformed packet");
+		}
+	}
+	
+	// Handles the messages that arrived since the last frame
+	public void update() {
+		messages.drain(this);
+	}
+	
+	@Override
+	public void onMessage(Connection connection, ByteBuffer message) {
+		if(connection == null || connection != Client.getConnection())
+			return;
 		
-		int type = toInt(msg[0]);
+		if(!handleMessage(message)) {
+			System.err.println("Client received a malformed message");
+		}
+	}
+	
+	private boolean handleMessage(ByteBuffer message) {
+		final int type = NetworkCodec.decodeType(message);
 		
 		switch(type) {
 		case NetworkMessage.CLIENT_ACCEPTED:
-			onClientJoined(toInt(msg[1]), true);
+			onClientAccepted(NetworkCodec.getId(message), NetworkCodec.getToken(message));
 			break;
 		case NetworkMessage.CLIENT_JOINED:
-			onClientJoined(toInt(msg[1]), false);
+			onClientJoined(NetworkCodec.getId(message), false);
+			break;
+		case NetworkMessage.CLIENT_LEFT:
+			onClientLeft(NetworkCodec.getId(message));
 			break;
 		case NetworkMessage.CLIENT_REJECTED:
-			onRejected(toInt(msg[1]));
+			onRejected(NetworkCodec.getByte(message));
 			break;
 		case NetworkMessage.PLAYER_INFO:
-			onPlayerInfoReceived(toInt(msg[1]), toInt(msg[2]), toInt(msg[3]), toFloat(msg[4]),
-					toFloat(msg[5]), toFloat(msg[6]));
+			onPlayerInfoReceived(NetworkCodec.getId(message), NetworkCodec.getPosition(message),
+					NetworkCodec.getPosition(message), NetworkCodec.getVelocity(message),
+					NetworkCodec.getVelocity(message), NetworkCodec.getRotation(message));
 			break;
 		case NetworkMessage.PLAYER_COLLISION:
-			onPlayerCollision(toInt(msg[1]), toInt(msg[2]), toInt(msg[3]), toBool(msg[4]));
+			onPlayerCollision(NetworkCodec.getId(message), NetworkCodec.getPosition(message),
+					NetworkCodec.getPosition(message), NetworkCodec.getBool(message));
 			break;
 		case NetworkMessage.PLAYER_ATTACK:
-			onPlayerAttack(toInt(msg[1]), toInt(msg[2]), toBool(msg[3]));
+			onPlayerAttack(NetworkCodec.getId(message), NetworkCodec.getByte(message),
+					NetworkCodec.getBool(message));
 			break;
 		case NetworkMessage.PLAYER_HIT:
-			onPlayerHit(toInt(msg[1]));
+			onPlayerHit(NetworkCodec.getId(message), NetworkCodec.getId(message));
+			break;
+		case NetworkMessage.WORLD_SNAPSHOT:
+			onSnapshotReceived(NetworkCodec.getTick(message), NetworkCodec.getTime(message),
+					NetworkCodec.getTick(message), NetworkCodec.getTick(message), message);
 			break;
 		case NetworkMessage.GAME_START:
-			onGameStart();
+			onGameStart(NetworkCodec.getByte(message));
 			break;
 		default:
-			System.err.println("Client received an unsupported message type: " + msg[0]);
+			System.err.println("Client received an unsupported message type: " + type);
 		}
+		
+		return true;
 	}
 	
 	@Override
@@ -70,6 +144,21 @@ public class UDPClientHandler implements IUDPClientHandler {
 	public void disconnect() {
 		players.clear();
 		playerId = 0;
+		token = 0;
+		accepted = false;
+		receivedSnapshot = false;
+		snapshots.clear();
+	}
+	
+	private void onClientAccepted(int id, long token) {
+		UDPClientHandler.token = token;
+		accepted = true;
+		
+		onClientJoined(id, true);
+	}
+	
+	private void onClientLeft(int id) {
+		players.remove(id);
 	}
 	
 	private void onClientJoined(int id, boolean isOwn) {
@@ -91,12 +180,27 @@ public class UDPClientHandler implements IUDPClientHandler {
 		Client.disconnect();
 	}
 	
+	// Sent by the server when it places a player, this overrides our own prediction as well
 	private void onPlayerInfoReceived(int id, int x, int y, float velocityX, float velocityY,
 			float rotation) {
-		if(id == playerId && Client.isStarted())
+		final EntityPlayer player = players.get(id);
+		
+		if(player == null)
 			return;
 		
-		EntityPlayer player = players.get(id);
+		if(player.isControllable()) {
+			player.getController().resetPrediction();
+		} else {
+			player.getInterpolation().clear();
+			player.getInterpolation().add(System.nanoTime(), x, y, velocityX, velocityY,
+					rotation);
+		}
+		
+		setPlayerState(player, x, y, velocityX, velocityY, rotation);
+	}
+	
+	private void setPlayerState(EntityPlayer player, int x, int y, float velocityX,
+			float velocityY, float rotation) {
 		player.setX(x);
 		player.setY(y);
 		player.setVelocityX(velocityX);
@@ -104,6 +208,87 @@ public class UDPClientHandler implements IUDPClientHandler {
 		player.setRotation(rotation);
 	}
 	
+	private void onSnapshotReceived(int tick, int time, int baselineTick, int lastInput,
+			ByteBuffer message) {
+		// Drop snapshots that arrive out of order
+		if(receivedSnapshot && tick - lastSnapshotTick <= 0)
+			return;
+		
+		final Snapshot baseline = snapshots.get(baselineTick);
+		
+		// Can't decode a delta against a snapshot we no longer have, wait for the next one
+		if(baselineTick >= 0 && baseline == null)
+			return;
+		
+		final Snapshot snapshot = snapshots.next(tick);
+		
+		if(!codec.getSnapshot(message, baseline, snapshot)) {
+			snapshot.clear(-1);
+			return;
+		}
+		
+		lastSnapshotTick = tick;
+		receivedSnapshot = true;
+		
+		Client.ackSnapshot(tick);
+		
+		final ServerClock clock = Client.getClock();
+		clock.onSnapshot(tick, time);
+		
+		// Once the clock is synchronized the states are timed by when the server had them,
+		// rather than by when they happened to arrive
+		final long now = clock.isSynchronized() ? clock.toArrivalTime(time) : System.nanoTime();
+		
+		final int count = snapshot.getCount();
+		for(int i = 0; i < count; i++) {
+			final EntityPlayer player = players.get(snapshot.getID(i));
+			
+			if(player == null)
+				continue;
+			
+			// Our own player runs ahead of the server, only corrections are applied to it
+			if(player.isControllable() && Client.isStarted()) {
+				player.getController().reconcile(lastInput, snapshot.getX(i), snapshot.getY(i),
+						snapshot.getVelocityX(i), snapshot.getVelocityY(i));
+			} else if(player.isControllable()) {
+				setPlayerState(player, snapshot.getX(i), snapshot.getY(i),
+						snapshot.getVelocityX(i), snapshot.getVelocityY(i), snapshot.getRotation(i));
+			} else {
+				player.getInterpolation().add(now, snapshot.getX(i), snapshot.getY(i),
+						snapshot.getVelocityX(i), snapshot.getVelocityY(i), snapshot.getRotation(i));
+			}
+		}
+		
+		if(baseline != null) {
+			onPlayersLeftInterest(baseline, snapshot, now);
+		}
+	}
+	
+	// Players that dropped out of our area of interest stop moving where they were last seen
+	private void onPlayersLeftInterest(Snapshot baseline, Snapshot snapshot, long now) {
+		final int count = snapshot.getCount();
+		final int baseCount = baseline.getCount();
+		
+		int i = 0;
+		
+		for(int j = 0; j < baseCount; j++) {
+			final int id = baseline.getID(j);
+			
+			while(i < count && snapshot.getID(i) < id) {
+				i++;
+			}
+			
+			if(i < count && snapshot.getID(i) == id)
+				continue;
+			
+			final EntityPlayer player = players.get(id);
+			
+			if(player != null && id != playerId) {
+				player.getInterpolation().stop(now);
+			}
+		}
+	}
+	
 	private void onPlayerCollision(int id, int objectX, int objectY, boolean colliding) {
 		if(id == playerId)
 			return;
@@ -125,26 +310,14 @@ public class UDPClientHandler implements IUDPClientHandler {
 		players.get(id).onAttackChange(side, attacking);
 	}
 	
-	private void onPlayerHit(int fromId) {
+	private void onPlayerHit(int id, int fromId) {
 		players.get(playerId).onHit(players.get(fromId));
 	}
 	
-	private void onGameStart() {
+	private void onGameStart(int levelId) {
 		client.loadLevel(1);
 	}
 	
-	private float toFloat(String string) {
-		return Float.parseFloat(string);
-	}
-	
-	private int toInt(String string) {
-		return Integer.parseInt(string);
-	}
-	
-	private boolean toBool(String string) {
-		return Boolean.parseBoolean(string);
-	}
-	
 	public EntityPlayer[] getPlayers() {
 		return players.values().toArray(new EntityPlayer[players.size()]);
 	}
@@ -156,4 +329,50 @@ public class UDPClientHandler implements IUDPClientHandler {
 	public static int getId() {
 		return playerId;
 	}
-}
+	
+	public static long getToken() {
+		return token;
+	}
+	
+	public static boolean isAccepted() {
+		return accepted;
+	}
+	
+	// Queues the frames of the packets one connection received, tagged with that connection so
+	// messages of an old one can be told apart
+	private class Receiver implements IMessageHandler {
+		private final Connection connection;
+		
+		public Receiver(Connection connection) {
+			this.connection = connection;
+		}
+		
+		// Returns false if the frame is malformed. Pongs are handled right away, waiting for the
+		// next frame would count as network delay.
+		@Override
+		public boolean onFrameReceived(ByteBuffer message) {
+			final int start = message.position();
+			final int type = NetworkCodec.decodeType(message);
+			
+			if(type < 0)
+				return false;
+			
+			if(type == NetworkMessage.PONG) {
+				NetworkCodec.getTick(message);
+				
+				Client.getClock().onPong(NetworkCodec.getTime(message),
+						NetworkCodec.getTime(message), NetworkCodec.getTime(message),
+						System.nanoTime());
+				return true;
+			}
+			
+			message.position(start);
+			
+			if(!messages.offer(connection, message)) {
+				System.err.println("Client message queue full, dropped a message");
+			}
+			
+			return true;
+		}
+	}
+}
\ No newline at end of file
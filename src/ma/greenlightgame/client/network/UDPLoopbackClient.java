@@ -0,0 +1,69 @@
+package ma.greenlightgame.client.network;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import ma.greenlightgame.common.network.Loopback;
+import ma.greenlightgame.common.network.MessageQueue.IMessageConsumer;
+
+// Talks to the server in this process without a socket, packets from the server are handled
+// when the game thread updates the client
+public class UDPLoopbackClient extends UDPClient implements IMessageConsumer<InetSocketAddress> {
+	private Loopback loopback;
+	
+	// Address the server sees us at
+	private InetSocketAddress address;
+	
+	private boolean closed;
+	
+	public UDPLoopbackClient(Loopback loopback, IUDPClientHandler handler) {
+		super(handler);
+		
+		this.loopback = loopback;
+		
+		System.out.println("Connecting to the local server on port " + loopback.getPort());
+		
+		address = loopback.connect();
+		
+		System.out.println("Connected to server");
+	}
+	
+	@Override
+	public void send(ByteBuffer message) {
+		if(closed)
+			return;
+		
+		// The server is gone
+		if(!loopback.sendToServer(address, message)) {
+			closed = true;
+			handler.onUnableToConnect(this);
+		}
+	}
+	
+	@Override
+	public void update() {
+		loopback.receive(this);
+	}
+	
+	@Override
+	public void onMessage(InetSocketAddress address, ByteBuffer packet) {
+		// Sent to a client that connected before us
+		if(closed || !address.equals(this.address))
+			return;
+		
+		handler.onMessageReceived(this, packet);
+	}
+	
+	@Override
+	public void close() {
+		if(closed)
+			return;
+		
+		System.out.println("Disconnecting...");
+		
+		closed = true;
+		loopback.disconnect(address);
+		
+		System.out.println("Disconnected");
+	}
+}
@@ -0,0 +1,154 @@
+package ma.greenlightgame.client.network;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import ma.greenlightgame.common.network.LinkConditioner;
+import ma.greenlightgame.common.network.LinkConditioner.ILinkHandler;
+import ma.greenlightgame.common.config.Config;
+import ma.greenlightgame.common.network.NetworkData;
+
+public class UDPSocketClient extends UDPClient implements Runnable {
+	private DatagramSocket socket;
+	
+	private DatagramPacket receivePacket;
+	private DatagramPacket sendPacket;
+	
+	private ByteBuffer receiveBuffer;
+	
+	private Thread thread;
+	
+	// Null unless the link is being simulated
+	private LinkConditioner conditioner;
+	
+	private ILinkHandler conditionedSend;
+	private ILinkHandler conditionedReceive;
+	
+	public UDPSocketClient(InetAddress address, int port, IUDPClientHandler handler)
+			throws SocketException {
+		super(handler);
+		
+		if(port <= 0 || port > NetworkData.MAX_PORT)
+			throw new IndexOutOfBoundsException("The port " + port + " is out of bounds (0-"
+					+ NetworkData.MAX_PORT + ")");
+		
+		System.out.println("Connecting to server: " + address.getCanonicalHostName() + ":" + port);
+		
+		socket = new DatagramSocket();
+		socket.setSoTimeout(NetworkData.SO_TIMEOUT);
+		socket.setReceiveBufferSize(Config.getInt(Config.SOCKET_RECEIVE_BUFFER));
+		socket.setSendBufferSize(Config.getInt(Config.SOCKET_SEND_BUFFER));
+		socket.connect(address, port);
+		
+		receivePacket = new DatagramPacket(new byte[NetworkData.BUFFER_SIZE], NetworkData.BUFFER_SIZE);
+		receiveBuffer = ByteBuffer.wrap(receivePacket.getData());
+		sendPacket = new DatagramPacket(new byte[0], 0);
+		
+		if(socket == null || socket.isClosed())
+			return;
+		
+		conditioner = LinkConditioner.create(LinkConditioner.CLIENT);
+		
+		conditionedSend = new ILinkHandler() {
+			@Override
+			public void onPacketDelivered(InetSocketAddress address, ByteBuffer packet)
+					throws IOException {
+				sendPacket(packet);
+			}
+		};
+		
+		conditionedReceive = new ILinkHandler() {
+			@Override
+			public void onPacketDelivered(InetSocketAddress address, ByteBuffer packet) {
+				UDPSocketClient.this.handler.onMessageReceived(UDPSocketClient.this, packet);
+			}
+		};
+		
+		thread = new Thread(this);
+		thread.start();
+	}
+	
+	@Override
+	public void run() {
+		System.out.println("Connected to server");
+		
+		while(!socket.isClosed() && socket.isConnected()) {
+			try {
+				receivePacket.setLength(NetworkData.BUFFER_SIZE);
+				socket.receive(receivePacket);
+				
+				receiveBuffer.clear();
+				receiveBuffer.limit(receivePacket.getLength());
+				
+				if(conditioner != null) {
+					conditioner.receive(conditionedReceive, null, receiveBuffer);
+				} else {
+					handler.onMessageReceived(this, receiveBuffer);
+				}
+			} catch(IOException e) {
+				if(!(e instanceof SocketTimeoutException)) {
+					if(e instanceof PortUnreachableException) {
+						handler.onUnableToConnect(this);
+						close();
+					} else {
+						if(!socket.isClosed()) {
+							e.printStackTrace();
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void send(ByteBuffer message) throws IOException {
+		if(conditioner != null) {
+			conditioner.send(conditionedSend, null, message);
+			return;
+		}
+		
+		sendPacket(message);
+	}
+	
+	private void sendPacket(ByteBuffer message) throws IOException {
+		if(socket.isClosed())
+			return;
+		
+		if(message.remaining() > NetworkData.BUFFER_SIZE) {
+			System.err.println("Dropped a packet of " + message.remaining()
+					+ " bytes, larger than a datagram");
+			return;
+		}
+		
+		synchronized(sendPacket) {
+			sendPacket.setData(message.array(), message.arrayOffset() + message.position(),
+					message.remaining());
+			
+			socket.send(sendPacket);
+		}
+	}
+	
+	@Override
+	public void close() {
+		if(socket.isClosed())
+			return;
+		
+		System.out.println("Disconnecting...");
+		
+		if(conditioner != null) {
+			conditioner.close();
+		}
+		
+		socket.close();
+		thread.interrupt();
+		
+		System.out.println("Disconnected");
+	}
+}
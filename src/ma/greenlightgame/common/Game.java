@@ -1,5 +1,8 @@
 package ma.greenlightgame.common;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
 import ma.greenlightgame.client.Client;
 import ma.greenlightgame.client.input.Input;
 import ma.greenlightgame.client.input.Input.KeyCode;
@@ -40,6 +43,18 @@ public class Game {
 	}
 	
 	public static void startServer() {
-		server = new Server();
+		final int port = Config.getInt(Config.LAST_SERVER_PORT);
+		
+		server = new Server(port);
+		
+		try {
+			Client.connect(InetAddress.getLocalHost(), port);
+		} catch(UnknownHostException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	public static Server getServer() {
+		return server;
 	}
 }
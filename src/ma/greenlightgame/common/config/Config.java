@@ -24,6 +24,31 @@ public class Config {
 	public static final String LAST_SERVER_IP = "lastServerIp";
 	public static final String LAST_SERVER_PORT = "lastServerPort";
 	public static final String SERVER_PORT = "serverPort";
+	public static final String SERVER_ENGINE = "serverEngine";
+	public static final String SERVER_SOCKETS = "serverSockets";
+	public static final String SERVER_TICK_RATE = "serverTickRate";
+	public static final String SESSION_TIMEOUT = "sessionTimeout";
+	public static final String MAX_ROOMS = "maxRooms";
+	public static final String ROOM_WORKERS = "roomWorkers";
+	public static final String SOCKET_RECEIVE_BUFFER = "socketReceiveBuffer";
+	public static final String SOCKET_SEND_BUFFER = "socketSendBuffer";
+	public static final String CLIENT_BANDWIDTH = "clientBandwidth";
+	public static final String INTEREST_RADIUS = "interestRadius";
+	public static final String INTEREST_HYSTERESIS = "interestHysteresis";
+	public static final String METRICS_INTERVAL = "metricsInterval";
+	public static final String METRICS_CSV = "metricsCsv";
+	public static final String LINK_CONDITIONER = "linkConditioner";
+	public static final String LINK_LATENCY = "linkLatency";
+	public static final String LINK_JITTER = "linkJitter";
+	public static final String LINK_LOSS = "linkLoss";
+	public static final String LINK_DUPLICATE = "linkDuplicate";
+	public static final String LINK_REORDER = "linkReorder";
+	public static final String LINK_BANDWIDTH = "linkBandwidth";
+	public static final String LINK_SEED = "linkSeed";
+	public static final String INTERPOLATION_DELAY = "interpolationDelay";
+	public static final String MAX_EXTRAPOLATION = "maxExtrapolation";
+	public static final String STATE_MIN_RATE = "stateMinRate";
+	public static final String STATE_MAX_RATE = "stateMaxRate";
 	
 	// Constants
 	public static final int RENDER_WIDTH = 1920;
@@ -73,7 +98,64 @@ public class Config {
 								+ (config.isEmpty() ? "1337" : getString(LAST_SERVER_PORT)) + ",",
 						"",
 						"    [\"" + SERVER_PORT + "\"] = "
-								+ (config.isEmpty() ? "1337" : getInt(SERVER_PORT)), "}"};
+								+ (config.isEmpty() ? "1337" : getInt(SERVER_PORT)) + ",",
+						"    [\"" + SERVER_ENGINE + "\"] = \""
+								+ (config.isEmpty() ? "socket" : getString(SERVER_ENGINE)) + "\",",
+						"    [\"" + SERVER_SOCKETS + "\"] = "
+								+ (config.isEmpty() ? "1" : getInt(SERVER_SOCKETS)) + ",",
+						"    [\"" + SERVER_TICK_RATE + "\"] = "
+								+ (config.isEmpty() ? "30" : getInt(SERVER_TICK_RATE)) + ",",
+						"    [\"" + SESSION_TIMEOUT + "\"] = "
+								+ (config.isEmpty() ? "10000" : getInt(SESSION_TIMEOUT)) + ",",
+						"    [\"" + MAX_ROOMS + "\"] = "
+								+ (config.isEmpty() ? "256" : getInt(MAX_ROOMS)) + ",",
+						"    [\"" + ROOM_WORKERS + "\"] = "
+								+ (config.isEmpty() ? "4" : getInt(ROOM_WORKERS)) + ",",
+						"",
+						"    [\"" + SOCKET_RECEIVE_BUFFER + "\"] = "
+								+ (config.isEmpty() ? "262144" : getInt(SOCKET_RECEIVE_BUFFER))
+								+ ",",
+						"    [\"" + SOCKET_SEND_BUFFER + "\"] = "
+								+ (config.isEmpty() ? "262144" : getInt(SOCKET_SEND_BUFFER)) + ",",
+						"    [\"" + CLIENT_BANDWIDTH + "\"] = "
+								+ (config.isEmpty() ? "16384" : getInt(CLIENT_BANDWIDTH)) + ",",
+						"",
+						"    [\"" + INTEREST_RADIUS + "\"] = "
+								+ (config.isEmpty() ? "2200" : getInt(INTEREST_RADIUS)) + ",",
+						"    [\"" + INTEREST_HYSTERESIS + "\"] = "
+								+ (config.isEmpty() ? "200" : getInt(INTEREST_HYSTERESIS)) + ",",
+						"",
+						"    [\"" + METRICS_INTERVAL + "\"] = "
+								+ (config.isEmpty() ? "10000" : getInt(METRICS_INTERVAL)) + ",",
+						"    [\"" + METRICS_CSV + "\"] = \""
+								+ (config.isEmpty() ? "" : getString(METRICS_CSV)) + "\",",
+						"",
+						"    [\"" + LINK_CONDITIONER + "\"] = \""
+								+ (config.isEmpty() ? "none" : getString(LINK_CONDITIONER)) + "\",",
+						"    [\"" + LINK_LATENCY + "\"] = "
+								+ (config.isEmpty() ? "0" : getInt(LINK_LATENCY)) + ",",
+						"    [\"" + LINK_JITTER + "\"] = "
+								+ (config.isEmpty() ? "0" : getInt(LINK_JITTER)) + ",",
+						"    [\"" + LINK_LOSS + "\"] = "
+								+ (config.isEmpty() ? "0" : getInt(LINK_LOSS)) + ",",
+						"    [\"" + LINK_DUPLICATE + "\"] = "
+								+ (config.isEmpty() ? "0" : getInt(LINK_DUPLICATE)) + ",",
+						"    [\"" + LINK_REORDER + "\"] = "
+								+ (config.isEmpty() ? "0" : getInt(LINK_REORDER)) + ",",
+						"    [\"" + LINK_BANDWIDTH + "\"] = "
+								+ (config.isEmpty() ? "0" : getInt(LINK_BANDWIDTH)) + ",",
+						"    [\"" + LINK_SEED + "\"] = "
+								+ (config.isEmpty() ? "0" : getInt(LINK_SEED)) + ",",
+						"",
+						"    [\"" + INTERPOLATION_DELAY + "\"] = "
+								+ (config.isEmpty() ? "100" : getInt(INTERPOLATION_DELAY)) + ",",
+						"    [\"" + MAX_EXTRAPOLATION + "\"] = "
+								+ (config.isEmpty() ? "250" : getInt(MAX_EXTRAPOLATION)) + ",",
+						"    [\"" + STATE_MIN_RATE + "\"] = "
+								+ (config.isEmpty() ? "2" : getInt(STATE_MIN_RATE)) + ",",
+						"    [\"" + STATE_MAX_RATE + "\"] = "
+								+ (config.isEmpty() ? "20" : getInt(STATE_MAX_RATE)),
+						"}"};
 		
 		BufferedWriter writer = null;
 		
@@ -122,6 +204,41 @@ public class Config {
 		
 		// Server info
 		setInt(SERVER_PORT, config.get(SERVER_PORT).toint());
+		setString(SERVER_ENGINE, config.get(SERVER_ENGINE).optjstring("socket"));
+		
+		// Sockets sharing the port, each with its own thread. Needs the channel engine.
+		setInt(SERVER_SOCKETS, config.get(SERVER_SOCKETS).optint(1));
+		
+		setInt(SERVER_TICK_RATE, config.get(SERVER_TICK_RATE).optint(30));
+		setInt(SESSION_TIMEOUT, config.get(SESSION_TIMEOUT).optint(10000));
+		setInt(MAX_ROOMS, config.get(MAX_ROOMS).optint(256));
+		setInt(ROOM_WORKERS, config.get(ROOM_WORKERS).optint(4));
+		setInt(SOCKET_RECEIVE_BUFFER, config.get(SOCKET_RECEIVE_BUFFER).optint(262144));
+		setInt(SOCKET_SEND_BUFFER, config.get(SOCKET_SEND_BUFFER).optint(262144));
+		
+		// Bytes per second the server sends to each client at most
+		setInt(CLIENT_BANDWIDTH, config.get(CLIENT_BANDWIDTH).optint(16384));
+		
+		setInt(INTEREST_RADIUS, config.get(INTEREST_RADIUS).optint(2200));
+		setInt(INTEREST_HYSTERESIS, config.get(INTEREST_HYSTERESIS).optint(200));
+		setInt(METRICS_INTERVAL, config.get(METRICS_INTERVAL).optint(10000));
+		setString(METRICS_CSV, config.get(METRICS_CSV).optjstring(""));
+		
+		// Link conditioner, latency and jitter in ms, chances in percent, bandwidth in kbit/s
+		setString(LINK_CONDITIONER, config.get(LINK_CONDITIONER).optjstring("none"));
+		setInt(LINK_LATENCY, config.get(LINK_LATENCY).optint(0));
+		setInt(LINK_JITTER, config.get(LINK_JITTER).optint(0));
+		setInt(LINK_LOSS, config.get(LINK_LOSS).optint(0));
+		setInt(LINK_DUPLICATE, config.get(LINK_DUPLICATE).optint(0));
+		setInt(LINK_REORDER, config.get(LINK_REORDER).optint(0));
+		setInt(LINK_BANDWIDTH, config.get(LINK_BANDWIDTH).optint(0));
+		setInt(LINK_SEED, config.get(LINK_SEED).optint(0));
+		
+		// Remote players, in ms
+		setInt(INTERPOLATION_DELAY, config.get(INTERPOLATION_DELAY).optint(100));
+		setInt(MAX_EXTRAPOLATION, config.get(MAX_EXTRAPOLATION).optint(250));
+		setInt(STATE_MIN_RATE, config.get(STATE_MIN_RATE).optint(2));
+		setInt(STATE_MAX_RATE, config.get(STATE_MAX_RATE).optint(20));
 		
 		setString(LAST_SERVER_IP, config.get(LAST_SERVER_IP).tojstring());
 		setInt(LAST_SERVER_PORT, config.get(LAST_SERVER_PORT).toint());
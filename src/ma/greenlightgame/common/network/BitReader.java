@@ -0,0 +1,59 @@
+package ma.greenlightgame.common.network;
+
+import java.nio.ByteBuffer;
+
+// Reads values written by BitWriter. Reading past the end of the buffer returns 0 and marks
+// the reader as overflowed, so a malformed message can be checked for once at the end.
+public class BitReader {
+	private ByteBuffer buffer;
+	
+	private long scratch;
+	private int bits;
+	
+	private boolean overflowed;
+	
+	// Starts reading at the current position of the buffer
+	public void begin(ByteBuffer buffer) {
+		this.buffer = buffer;
+		
+		scratch = 0;
+		bits = 0;
+		overflowed = false;
+	}
+	
+	public int read(int bits) {
+		if(bits < 1 || bits > 32)
+			throw new IllegalArgumentException("Can't read " + bits + " bits");
+		
+		while(this.bits < bits) {
+			if(!buffer.hasRemaining()) {
+				overflowed = true;
+				return 0;
+			}
+			
+			scratch |= (buffer.get() & 0xFFL) << this.bits;
+			this.bits += 8;
+		}
+		
+		final int value = (int)(scratch & ((1L << bits) - 1));
+		
+		scratch >>>= bits;
+		this.bits -= bits;
+		
+		return value;
+	}
+	
+	public boolean readBool() {
+		return read(1) != 0;
+	}
+	
+	// Skips what is left of the current byte, the buffer is byte aligned again afterwards
+	public void end() {
+		scratch = 0;
+		bits = 0;
+	}
+	
+	public boolean isOverflowed() {
+		return overflowed;
+	}
+}
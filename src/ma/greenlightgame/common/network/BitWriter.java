@@ -0,0 +1,50 @@
+package ma.greenlightgame.common.network;
+
+import java.nio.ByteBuffer;
+
+// Packs values into a buffer using only as many bits as they need, lowest bits first
+public class BitWriter {
+	private ByteBuffer buffer;
+	
+	// Bits that don't fill a byte yet
+	private long scratch;
+	private int bits;
+	
+	// Starts writing at the current position of the buffer
+	public void begin(ByteBuffer buffer) {
+		this.buffer = buffer;
+		
+		scratch = 0;
+		bits = 0;
+	}
+	
+	public void write(int value, int bits) {
+		if(bits < 1 || bits > 32 || (bits < 32 && value >>> bits != 0))
+			throw new IllegalArgumentException("Value " + value + " does not fit in " + bits
+					+ " bits");
+		
+		scratch |= (value & 0xFFFFFFFFL) << this.bits;
+		this.bits += bits;
+		
+		while(this.bits >= 8) {
+			buffer.put((byte)scratch);
+			
+			scratch >>>= 8;
+			this.bits -= 8;
+		}
+	}
+	
+	public void writeBool(boolean value) {
+		write(value ? 1 : 0, 1);
+	}
+	
+	// Writes the last partial byte, the buffer is byte aligned again afterwards
+	public void flush() {
+		if(bits > 0) {
+			buffer.put((byte)scratch);
+		}
+		
+		scratch = 0;
+		bits = 0;
+	}
+}
@@ -0,0 +1,51 @@
+package ma.greenlightgame.common.network;
+
+import java.nio.ByteBuffer;
+
+public class BufferPool {
+	private final ByteBuffer[] buffers;
+	
+	private final int capacity;
+	
+	private int available;
+	
+	public BufferPool(int size, int capacity, boolean direct) {
+		this.capacity = capacity;
+		
+		buffers = new ByteBuffer[size];
+		
+		for(int i = 0; i < size; i++) {
+			buffers[i] = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		}
+		
+		available = size;
+	}
+	
+	// Returns a cleared buffer, or null if every buffer is in use
+	public synchronized ByteBuffer acquire() {
+		if(available == 0)
+			return null;
+		
+		final ByteBuffer buffer = buffers[--available];
+		buffers[available] = null;
+		
+		buffer.clear();
+		
+		return buffer;
+	}
+	
+	public synchronized void release(ByteBuffer buffer) {
+		if(available == buffers.length)
+			throw new IllegalStateException("Released more buffers than were acquired");
+		
+		buffers[available++] = buffer;
+	}
+	
+	public synchronized int getAvailable() {
+		return available;
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+}
@@ -0,0 +1,734 @@
+package ma.greenlightgame.common.network;
+
+import java.nio.ByteBuffer;
+
+public class Connection {
+	public static final int PACKET_HEADER_SIZE = 9;    // Format: version, sequence, ack, ackBits
+	public static final int FRAME_HEADER_SIZE = 2;    // Format: reliable flag | fragment flag | length
+	public static final int RELIABLE_HEADER_SIZE = 2;    // Format: reliable sequence
+	public static final int FRAGMENT_HEADER_SIZE = 4;    // Format: fragment ID, index, count
+	
+	// Number of reliable messages that may be in flight, and the largest reliable message
+	public static final int RELIABLE_WINDOW = 64;
+	public static final int RELIABLE_MESSAGE_SIZE = 128;
+	
+	// Reliable messages, or fragments of one, that wait for room in the window
+	private static final int OVERFLOW_SLOTS = 2 * RELIABLE_WINDOW;
+	
+	private static final int RELIABLE_FLAG = 0x8000;
+	private static final int FRAGMENT_FLAG = 0x4000;
+	private static final int LENGTH_MASK = 0x3FFF;
+	
+	// Messages that don't fit in a packet, or a reliable slot, are split into fragments of this
+	// size. A fragment is a frame of its own, reliable fragments take a slot each.
+	private static final int FRAGMENT_SIZE = NetworkData.MAX_PACKET_SIZE - PACKET_HEADER_SIZE
+			- FRAME_HEADER_SIZE - FRAGMENT_HEADER_SIZE;
+	private static final int RELIABLE_FRAGMENT_SIZE = RELIABLE_MESSAGE_SIZE
+			- FRAGMENT_HEADER_SIZE;
+	
+	// Messages assembled at once, the rest of a message has to arrive within the timeout
+	private static final int REASSEMBLY_SLOTS = 4;
+	private static final long REASSEMBLY_TIMEOUT = 1000 * 1000000L;
+	
+	private static final int SENT_PACKETS = 256;
+	private static final int RELIABLE_PER_PACKET = 32;
+	private static final int ACK_BITS = 32;
+	
+	private static final long NANOS_PER_MILLI = 1000000L;
+	
+	private static final long INITIAL_RTO = 250 * NANOS_PER_MILLI;
+	private static final long MIN_RTO = 50 * NANOS_PER_MILLI;
+	private static final long MAX_RTO = 2000 * NANOS_PER_MILLI;
+	
+	// Weight of a single packet in the smoothed packet loss
+	private static final float LOSS_SMOOTHING = 1 / 32f;
+	
+	private final IPacketSender sender;
+	
+	private final ByteBuffer packet;
+	
+	// Packets we sent, indexed by sequence
+	private final int[] sentSequences;
+	private final long[] sentTimes;
+	private final boolean[] sentAcked;
+	private final int[] sentReliableCounts;
+	private final int[] sentReliable;
+	
+	private final int[] packetReliable;
+	private int packetReliableCount;
+	
+	// Reliable messages waiting for an ack, indexed by reliable sequence
+	private final ByteBuffer[] outgoing;
+	private final int[] outgoingSequences;
+	private final long[] outgoingTimes;
+	private final boolean[] outgoingPending;
+	private final boolean[] outgoingFragment;
+	
+	// Reliable messages that didn't fit in the window yet, ready to be moved in. Created when the
+	// window first fills up, most connections never need it.
+	private ByteBuffer[] overflow;
+	private boolean[] overflowFragment;
+	private int overflowHead;
+	private int overflowCount;
+	
+	// Reliable messages that arrived ahead of the next expected one
+	private final ByteBuffer[] incoming;
+	private final boolean[] incomingPresent;
+	private final boolean[] incomingFragment;
+	
+	// Created when the first fragment arrives, most connections never need it
+	private Reassembler reassembler;
+	
+	private int nextFragmentId;
+	
+	private int localSequence;
+	private int remoteSequence;
+	private int receivedBits;
+	
+	private int nextReliable;
+	private int oldestReliable;
+	private int expectedReliable;
+	
+	private long smoothedRtt;
+	private long rttVariance;
+	private long rto;
+	
+	// Oldest sent packet that hasn't been counted as delivered or lost yet
+	private int lossSequence;
+	private float packetLoss;
+	
+	private boolean receivedPacket;
+	private boolean ackPending;
+	
+	// A reliable frame arrived since the last packet, its sender resends it until we ack it
+	private boolean reliableAckPending;
+	
+	public Connection(IPacketSender sender) {
+		this.sender = sender;
+		
+		packet = ByteBuffer.allocate(NetworkData.MAX_PACKET_SIZE);
+		
+		sentSequences = new int[SENT_PACKETS];
+		sentTimes = new long[SENT_PACKETS];
+		sentAcked = new boolean[SENT_PACKETS];
+		sentReliableCounts = new int[SENT_PACKETS];
+		sentReliable = new int[SENT_PACKETS * RELIABLE_PER_PACKET];
+		
+		packetReliable = new int[RELIABLE_PER_PACKET];
+		
+		outgoing = new ByteBuffer[RELIABLE_WINDOW];
+		outgoingSequences = new int[RELIABLE_WINDOW];
+		outgoingTimes = new long[RELIABLE_WINDOW];
+		outgoingPending = new boolean[RELIABLE_WINDOW];
+		outgoingFragment = new boolean[RELIABLE_WINDOW];
+		
+		incoming = new ByteBuffer[RELIABLE_WINDOW];
+		incomingPresent = new boolean[RELIABLE_WINDOW];
+		incomingFragment = new boolean[RELIABLE_WINDOW];
+		
+		for(int i = 0; i < RELIABLE_WINDOW; i++) {
+			outgoing[i] = ByteBuffer.allocate(RELIABLE_MESSAGE_SIZE);
+			incoming[i] = ByteBuffer.allocate(RELIABLE_MESSAGE_SIZE);
+		}
+		
+		for(int i = 0; i < SENT_PACKETS; i++) {
+			sentSequences[i] = -1;
+		}
+		
+		rto = INITIAL_RTO;
+		
+		reset();
+	}
+	
+	// Queues a message on the unreliable channel, it goes out with the next packet. If any
+	// fragment of a large message is lost the whole message is.
+	public synchronized void send(ByteBuffer message) {
+		final int length = message.remaining();
+		
+		if(length > NetworkData.MAX_MESSAGE_SIZE)
+			throw new IllegalArgumentException("Message too large: " + length);
+		
+		if(PACKET_HEADER_SIZE + FRAME_HEADER_SIZE + length > NetworkData.MAX_PACKET_SIZE) {
+			sendFragments(message);
+			return;
+		}
+		
+		if(FRAME_HEADER_SIZE + length > packet.remaining()) {
+			sendPacket();
+		}
+		
+		packet.putShort((short)length);
+		putMessage(message);
+	}
+	
+	private void sendFragments(ByteBuffer message) {
+		final int start = message.position();
+		final int limit = message.limit();
+		final int count = (message.remaining() + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE;
+		final int id = nextFragmentId();
+		
+		for(int i = 0; i < count; i++) {
+			final int offset = start + i * FRAGMENT_SIZE;
+			final int length = Math.min(FRAGMENT_SIZE, limit - offset);
+			
+			if(FRAME_HEADER_SIZE + FRAGMENT_HEADER_SIZE + length > packet.remaining()) {
+				sendPacket();
+			}
+			
+			packet.putShort((short)(FRAGMENT_FLAG | (FRAGMENT_HEADER_SIZE + length)));
+			putFragmentHeader(packet, id, i, count);
+			
+			message.limit(offset + length);
+			message.position(offset);
+			packet.put(message);
+			message.limit(limit);
+		}
+		
+		message.position(start);
+	}
+	
+	// Queues a message on the reliable channel, it is resent until acked and delivered in order.
+	// Messages wait in the overflow while the window is full, returns false if that is full too.
+	public synchronized boolean sendReliable(ByteBuffer message) {
+		final int length = message.remaining();
+		final int count = length > RELIABLE_MESSAGE_SIZE
+				? (length + RELIABLE_FRAGMENT_SIZE - 1) / RELIABLE_FRAGMENT_SIZE : 1;
+		
+		if(count > RELIABLE_WINDOW)
+			throw new IllegalArgumentException("Reliable message too large: " + length);
+		
+		if(overflowCount > 0 || nextReliable - oldestReliable + count > RELIABLE_WINDOW) {
+			if(overflow == null) {
+				overflow = new ByteBuffer[OVERFLOW_SLOTS];
+				overflowFragment = new boolean[OVERFLOW_SLOTS];
+				
+				for(int i = 0; i < OVERFLOW_SLOTS; i++) {
+					overflow[i] = ByteBuffer.allocate(RELIABLE_MESSAGE_SIZE);
+				}
+			}
+			
+			if(overflowCount + count > OVERFLOW_SLOTS) {
+				System.err.println("Reliable queue full, dropped a message");
+				return false;
+			}
+		}
+		
+		if(count == 1) {
+			putReliable(message, false, 0, 0, 0);
+			return true;
+		}
+		
+		final int start = message.position();
+		final int limit = message.limit();
+		final int id = nextFragmentId();
+		
+		for(int i = 0; i < count; i++) {
+			final int offset = start + i * RELIABLE_FRAGMENT_SIZE;
+			
+			message.limit(Math.min(limit, offset + RELIABLE_FRAGMENT_SIZE));
+			message.position(offset);
+			
+			putReliable(message, true, id, i, count);
+			
+			message.limit(limit);
+		}
+		
+		message.position(start);
+		
+		return true;
+	}
+	
+	// Goes into the overflow once anything waits there, so the order is kept
+	private void putReliable(ByteBuffer message, boolean fragment, int id, int index, int count) {
+		final ByteBuffer buffer;
+		
+		if(overflowCount > 0 || nextReliable - oldestReliable == RELIABLE_WINDOW) {
+			final int slot = (overflowHead + overflowCount) % OVERFLOW_SLOTS;
+			
+			buffer = overflow[slot];
+			overflowFragment[slot] = fragment;
+			overflowCount++;
+		} else {
+			buffer = claimReliable(fragment);
+		}
+		
+		buffer.clear();
+		
+		if(fragment) {
+			putFragmentHeader(buffer, id, index, count);
+		}
+		
+		putMessage(buffer, message);
+		buffer.flip();
+	}
+	
+	// Takes the next slot of the window, returns its buffer
+	private ByteBuffer claimReliable(boolean fragment) {
+		final int slot = nextReliable % RELIABLE_WINDOW;
+		
+		outgoingSequences[slot] = nextReliable & 0xFFFF;
+		outgoingTimes[slot] = 0;
+		outgoingPending[slot] = true;
+		outgoingFragment[slot] = fragment;
+		
+		nextReliable++;
+		
+		return outgoing[slot];
+	}
+	
+	// Moves waiting messages into the room acks made in the window
+	private void moveOverflow() {
+		while(overflowCount > 0 && nextReliable - oldestReliable < RELIABLE_WINDOW) {
+			final ByteBuffer buffer = claimReliable(overflowFragment[overflowHead]);
+			
+			buffer.clear();
+			putMessage(buffer, overflow[overflowHead]);
+			buffer.flip();
+			
+			overflowHead = (overflowHead + 1) % OVERFLOW_SLOTS;
+			overflowCount--;
+		}
+	}
+	
+	// Sends everything that is queued, reliable messages are resent once their timeout expires
+	public synchronized void flush(long now) {
+		for(int i = oldestReliable; i < nextReliable; i++) {
+			final int slot = i % RELIABLE_WINDOW;
+			
+			if(!outgoingPending[slot])
+				continue;
+			
+			if(outgoingTimes[slot] != 0 && now - outgoingTimes[slot] < rto)
+				continue;
+			
+			final ByteBuffer message = outgoing[slot];
+			final int size = FRAME_HEADER_SIZE + RELIABLE_HEADER_SIZE + message.remaining();
+			
+			if(size > packet.remaining() || packetReliableCount == RELIABLE_PER_PACKET) {
+				sendPacket();
+			}
+			
+			packet.putShort((short)(RELIABLE_FLAG | (outgoingFragment[slot] ? FRAGMENT_FLAG : 0)
+					| message.remaining()));
+			packet.putShort((short)outgoingSequences[slot]);
+			putMessage(message);
+			
+			packetReliable[packetReliableCount++] = outgoingSequences[slot];
+			outgoingTimes[slot] = now;
+		}
+		
+		if(packet.position() > PACKET_HEADER_SIZE || ackPending) {
+			sendPacket();
+		}
+	}
+	
+	// True if a packet should go out now rather than with the next message: a reliable message
+	// is waiting to be sent or resent, or the other side waits for the ack of one. Unreliable
+	// messages and other acks can wait.
+	public synchronized boolean isFlushDue(long now) {
+		if(reliableAckPending)
+			return true;
+		
+		for(int i = oldestReliable; i < nextReliable; i++) {
+			final int slot = i % RELIABLE_WINDOW;
+			
+			if(outgoingPending[slot]
+					&& (outgoingTimes[slot] == 0 || now - outgoingTimes[slot] >= rto))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	// Processes the header and hands every new frame to the handler
+	public synchronized boolean receive(ByteBuffer packet, IMessageHandler handler) {
+		if(packet.remaining() < PACKET_HEADER_SIZE)
+			return false;
+		
+		if(packet.get() != (byte)NetworkData.PROTOCOL_VERSION)
+			return false;
+		
+		// Duplicates and packets that are too old are valid, just not interesting
+		if(!readHeader(packet)) {
+			packet.position(packet.limit());
+			return true;
+		}
+		
+		final int limit = packet.limit();
+		
+		while(packet.position() < limit) {
+			if(packet.remaining() < FRAME_HEADER_SIZE)
+				return false;
+			
+			final int header = packet.getShort() & 0xFFFF;
+			final int length = header & LENGTH_MASK;
+			final boolean fragment = (header & FRAGMENT_FLAG) != 0;
+			
+			if((header & RELIABLE_FLAG) == 0) {
+				if(!deliver(packet, length, limit, fragment ? FRAGMENT_SIZE : 0, handler))
+					return false;
+				
+				continue;
+			}
+			
+			if(packet.remaining() < RELIABLE_HEADER_SIZE + length
+					|| length > RELIABLE_MESSAGE_SIZE)
+				return false;
+			
+			final int sequence = packet.getShort() & 0xFFFF;
+			final int distance = (sequence - expectedReliable) & 0xFFFF;
+			
+			reliableAckPending = true;
+			
+			if(distance == 0) {
+				if(!deliver(packet, length, limit, fragment ? RELIABLE_FRAGMENT_SIZE : 0,
+						handler))
+					return false;
+				
+				expectedReliable = (expectedReliable + 1) & 0xFFFF;
+				
+				if(!deliverBuffered(handler))
+					return false;
+			} else {
+				// Buffer messages that arrive early, anything behind has been delivered already
+				if(distance < RELIABLE_WINDOW) {
+					final int slot = sequence % RELIABLE_WINDOW;
+					
+					if(!incomingPresent[slot]) {
+						final ByteBuffer buffer = incoming[slot];
+						buffer.clear();
+						
+						packet.limit(packet.position() + length);
+						buffer.put(packet);
+						packet.limit(limit);
+						
+						buffer.flip();
+						incomingPresent[slot] = true;
+						incomingFragment[slot] = fragment;
+						continue;
+					}
+				}
+				
+				packet.position(packet.position() + length);
+			}
+		}
+		
+		return true;
+	}
+	
+	public synchronized long getRoundTripTime() {
+		return smoothedRtt;
+	}
+	
+	// Fraction of the packets we sent that didn't arrive, smoothed
+	public synchronized float getPacketLoss() {
+		return packetLoss;
+	}
+	
+	public synchronized int getPendingReliable() {
+		return nextReliable - oldestReliable + overflowCount;
+	}
+	
+	private boolean readHeader(ByteBuffer packet) {
+		final int sequence = packet.getShort() & 0xFFFF;
+		final int ack = packet.getShort() & 0xFFFF;
+		final int ackBits = packet.getInt();
+		
+		if(receivedPacket) {
+			final int distance = (sequence - remoteSequence) & 0xFFFF;
+			
+			if(distance == 0)
+				return false;
+			
+			if(distance < 0x8000) {
+				receivedBits = distance < ACK_BITS ? receivedBits << distance : 0;
+				
+				if(distance <= ACK_BITS) {
+					receivedBits |= 1 << (distance - 1);
+				}
+				
+				remoteSequence = sequence;
+			} else {
+				final int age = 0x10000 - distance;
+				
+				// Too old to track, or a duplicate
+				if(age > ACK_BITS || (receivedBits & (1 << (age - 1))) != 0)
+					return false;
+				
+				receivedBits |= 1 << (age - 1);
+			}
+		} else {
+			remoteSequence = sequence;
+			receivedBits = 0;
+			receivedPacket = true;
+		}
+		
+		ackPending = true;
+		
+		onAck(ack, System.nanoTime(), true);
+		
+		for(int i = 0; i < ACK_BITS; i++) {
+			if((ackBits & (1 << i)) != 0) {
+				onAck((ack - i - 1) & 0xFFFF, 0, false);
+			}
+		}
+		
+		while(oldestReliable < nextReliable && !outgoingPending[oldestReliable % RELIABLE_WINDOW]) {
+			oldestReliable++;
+		}
+		
+		moveOverflow();
+		
+		updateLoss(ack);
+		
+		return true;
+	}
+	
+	private void onAck(int sequence, long now, boolean sample) {
+		final int slot = sequence % SENT_PACKETS;
+		
+		if(sentSequences[slot] != sequence || sentAcked[slot])
+			return;
+		
+		sentAcked[slot] = true;
+		
+		final int count = sentReliableCounts[slot];
+		for(int i = 0; i < count; i++) {
+			final int reliable = sentReliable[slot * RELIABLE_PER_PACKET + i];
+			final int reliableSlot = reliable % RELIABLE_WINDOW;
+			
+			if(outgoingSequences[reliableSlot] == reliable) {
+				outgoingPending[reliableSlot] = false;
+			}
+		}
+		
+		if(sample) {
+			updateRto(now - sentTimes[slot]);
+		}
+	}
+	
+	// A packet that falls out of the ack bits without being acked is lost
+	private void updateLoss(int ack) {
+		int age = (ack - lossSequence) & 0xFFFF;
+		
+		while(age > ACK_BITS && age < 0x8000) {
+			final int slot = lossSequence % SENT_PACKETS;
+			
+			if(sentSequences[slot] == lossSequence) {
+				packetLoss += ((sentAcked[slot] ? 0 : 1) - packetLoss) * LOSS_SMOOTHING;
+			}
+			
+			lossSequence = (lossSequence + 1) & 0xFFFF;
+			age--;
+		}
+	}
+	
+	// Smoothed round trip time and variance as in RFC 6298
+	private void updateRto(long rtt) {
+		if(smoothedRtt == 0) {
+			smoothedRtt = rtt;
+			rttVariance = rtt / 2;
+		} else {
+			rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rtt)) / 4;
+			smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+		}
+		
+		rto = Math.max(MIN_RTO, Math.min(MAX_RTO, smoothedRtt + 4 * rttVariance));
+	}
+	
+	// Fragments have the size of a full fragment on their channel, 0 for a whole message
+	private boolean deliver(ByteBuffer packet, int length, int limit, int fragmentSize,
+			IMessageHandler handler) {
+		if(packet.remaining() < length)
+			return false;
+		
+		final int end = packet.position() + length;
+		
+		packet.limit(end);
+		
+		final boolean valid = fragmentSize > 0 ? reassemble(packet, fragmentSize, handler)
+				: handler.onFrameReceived(packet);
+		
+		packet.limit(limit);
+		packet.position(end);
+		
+		return valid;
+	}
+	
+	private boolean deliverBuffered(IMessageHandler handler) {
+		while(incomingPresent[expectedReliable % RELIABLE_WINDOW]) {
+			final int slot = expectedReliable % RELIABLE_WINDOW;
+			
+			incomingPresent[slot] = false;
+			expectedReliable = (expectedReliable + 1) & 0xFFFF;
+			
+			final boolean valid = incomingFragment[slot]
+					? reassemble(incoming[slot], RELIABLE_FRAGMENT_SIZE, handler)
+					: handler.onFrameReceived(incoming[slot]);
+			
+			if(!valid)
+				return false;
+		}
+		
+		return true;
+	}
+	
+	// Hands the message to the handler once the fragment completes it
+	private boolean reassemble(ByteBuffer fragment, int fragmentSize, IMessageHandler handler) {
+		if(fragment.remaining() < FRAGMENT_HEADER_SIZE)
+			return false;
+		
+		final int id = fragment.getShort() & 0xFFFF;
+		final int index = fragment.get() & 0xFF;
+		final int count = fragment.get() & 0xFF;
+		
+		if(reassembler == null) {
+			reassembler = new Reassembler(REASSEMBLY_SLOTS, NetworkData.MAX_MESSAGE_SIZE,
+					REASSEMBLY_TIMEOUT);
+		}
+		
+		final ByteBuffer message = reassembler.add(id, index, count, fragmentSize, fragment,
+				System.nanoTime());
+		
+		return message == null || handler.onFrameReceived(message);
+	}
+	
+	private int nextFragmentId() {
+		final int id = nextFragmentId;
+		
+		nextFragmentId = (nextFragmentId + 1) & 0xFFFF;
+		
+		return id;
+	}
+	
+	private void sendPacket() {
+		final int slot = localSequence % SENT_PACKETS;
+		
+		sentSequences[slot] = localSequence;
+		sentTimes[slot] = System.nanoTime();
+		sentAcked[slot] = false;
+		sentReliableCounts[slot] = packetReliableCount;
+		System.arraycopy(packetReliable, 0, sentReliable, slot * RELIABLE_PER_PACKET,
+				packetReliableCount);
+		
+		// Nothing received yet, ack a sequence that can't have been sent
+		writeHeader(packet, localSequence, receivedPacket ? remoteSequence : 0xFFFF, receivedBits);
+		
+		packet.flip();
+		sender.sendPacket(packet);
+		
+		localSequence = (localSequence + 1) & 0xFFFF;
+		ackPending = false;
+		reliableAckPending = false;
+		
+		reset();
+	}
+	
+	private void reset() {
+		packet.clear();
+		packet.position(PACKET_HEADER_SIZE);
+		
+		packetReliableCount = 0;
+	}
+	
+	private void putMessage(ByteBuffer message) {
+		putMessage(packet, message);
+	}
+	
+	private static void putMessage(ByteBuffer to, ByteBuffer message) {
+		final int position = message.position();
+		
+		to.put(message);
+		message.position(position);
+	}
+	
+	private static void putFragmentHeader(ByteBuffer to, int id, int index, int count) {
+		to.putShort((short)id);
+		to.put((byte)index);
+		to.put((byte)count);
+	}
+	
+	private static void writeHeader(ByteBuffer packet, int sequence, int ack, int ackBits) {
+		packet.put(0, (byte)NetworkData.PROTOCOL_VERSION);
+		packet.putShort(1, (short)sequence);
+		packet.putShort(3, (short)ack);
+		packet.putInt(5, ackBits);
+	}
+	
+	// Wraps a message in a packet for a peer that has no connection, it is never acked
+	public static ByteBuffer wrapUnconnected(ByteBuffer message, ByteBuffer packet) {
+		packet.clear();
+		packet.position(PACKET_HEADER_SIZE);
+		packet.putShort((short)message.remaining());
+		putMessage(packet, message);
+		
+		writeHeader(packet, 0, 0xFFFF, 0);
+		
+		packet.flip();
+		
+		return packet;
+	}
+	
+	// Hands every frame of a packet from a peer without a connection to the handler
+	public static boolean receiveUnconnected(ByteBuffer packet, IMessageHandler handler) {
+		final int start = packet.position();
+		
+		if(packet.remaining() < PACKET_HEADER_SIZE)
+			return false;
+		
+		if(packet.get() != (byte)NetworkData.PROTOCOL_VERSION)
+			return false;
+		
+		packet.position(start + PACKET_HEADER_SIZE);
+		
+		final int limit = packet.limit();
+		
+		while(packet.position() < limit) {
+			if(packet.remaining() < FRAME_HEADER_SIZE)
+				return false;
+			
+			final int header = packet.getShort() & 0xFFFF;
+			
+			if((header & RELIABLE_FLAG) != 0) {
+				if(packet.remaining() < RELIABLE_HEADER_SIZE)
+					return false;
+				
+				packet.getShort();
+			}
+			
+			final int length = header & LENGTH_MASK;
+			
+			if(packet.remaining() < length)
+				return false;
+			
+			final int end = packet.position() + length;
+			
+			// Peers without a connection only send small messages
+			if((header & FRAGMENT_FLAG) != 0) {
+				packet.position(end);
+				continue;
+			}
+			
+			packet.limit(end);
+			
+			final boolean valid = handler.onFrameReceived(packet);
+			
+			packet.limit(limit);
+			packet.position(end);
+			
+			if(!valid)
+				return false;
+		}
+		
+		return true;
+	}
+	
+	public interface IPacketSender {
+		void sendPacket(ByteBuffer packet);
+	}
+	
+	public interface IMessageHandler {
+		// The message is limited to a single frame, returns false if it is malformed
+		boolean onFrameReceived(ByteBuffer message);
+	}
+}
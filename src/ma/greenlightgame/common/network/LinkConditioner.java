@@ -0,0 +1,344 @@
+package ma.greenlightgame.common.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import ma.greenlightgame.common.config.Config;
+
+// Simulates a bad link between a socket and its user. Packets are copied and delivered later by
+// a timer wheel with a slot per millisecond, they can be lost, duplicated, reordered, delayed or
+// queued behind a bandwidth cap. Both directions of the socket are conditioned.
+public class LinkConditioner implements Runnable {
+	public static final String NONE = "none";
+	public static final String CLIENT = "client";
+	public static final String SERVER = "server";
+	
+	private static final int WHEEL_SIZE = 1024;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	
+	private static final int POOL_SIZE = 2048;
+	
+	private static final long NANOS_PER_MILLI = 1000000L;
+	
+	// Reordered packets are held back this much longer than the packets behind them
+	private static final long REORDER_DELAY = 20 * NANOS_PER_MILLI;
+	
+	// Packets that would wait longer than this behind the bandwidth cap are dropped
+	private static final long MAX_QUEUE_DELAY = 500 * NANOS_PER_MILLI;
+	
+	private final String name;
+	
+	private final long latency;
+	private final long jitter;
+	
+	private final int loss;
+	private final int duplicate;
+	private final int reorder;
+	
+	// Bits per second, 0 is unlimited
+	private final long bandwidth;
+	
+	private final Random random;
+	
+	private final Lane outbound;
+	private final Lane inbound;
+	
+	private final Entry[] heads;
+	private final Entry[] tails;
+	
+	private final Entry[] pool;
+	private int available;
+	
+	private final long startTime;
+	
+	// Last slot that was delivered
+	private long tick;
+	
+	private Thread thread;
+	
+	private volatile boolean running;
+	
+	private long delivered;
+	private long dropped;
+	private long duplicated;
+	private long reordered;
+	private long overflowed;
+	
+	public LinkConditioner(String name, int latency, int jitter, int loss, int duplicate,
+			int reorder, int bandwidth, long seed) {
+		this.name = name;
+		this.latency = latency * NANOS_PER_MILLI;
+		this.jitter = jitter * NANOS_PER_MILLI;
+		this.loss = loss;
+		this.duplicate = duplicate;
+		this.reorder = reorder;
+		this.bandwidth = bandwidth * 1000L;
+		
+		random = seed == 0 ? new Random() : new Random(seed);
+		
+		outbound = new Lane();
+		inbound = new Lane();
+		
+		heads = new Entry[WHEEL_SIZE];
+		tails = new Entry[WHEEL_SIZE];
+		
+		pool = new Entry[POOL_SIZE];
+		
+		for(int i = 0; i < POOL_SIZE; i++) {
+			pool[i] = new Entry();
+		}
+		
+		available = POOL_SIZE;
+		
+		startTime = System.nanoTime();
+		
+		System.out.println("Conditioning the " + name + " link: latency " + latency + "ms, jitter "
+				+ jitter + "ms, loss " + loss + "%, duplicate " + duplicate + "%, reorder "
+				+ reorder + "%, bandwidth " + (bandwidth > 0 ? bandwidth + "kbit/s" : "unlimited"));
+		
+		running = true;
+		
+		thread = new Thread(this, "Link conditioner (" + name + ")");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	// Queues a packet leaving the socket, the handler sends it for real
+	public void send(ILinkHandler handler, InetSocketAddress address, ByteBuffer packet) {
+		schedule(outbound, handler, address, packet);
+	}
+	
+	// Queues a packet the socket received, the handler passes it on to the game
+	public void receive(ILinkHandler handler, InetSocketAddress address, ByteBuffer packet) {
+		schedule(inbound, handler, address, packet);
+	}
+	
+	public void close() {
+		if(!running)
+			return;
+		
+		running = false;
+		thread.interrupt();
+		
+		synchronized(this) {
+			System.out.println("Link conditioner (" + name + "): " + delivered + " delivered, "
+					+ dropped + " dropped, " + duplicated + " duplicated, " + reordered
+					+ " reordered, " + overflowed + " overflowed");
+		}
+	}
+	
+	@Override
+	public void run() {
+		while(running) {
+			final long elapsed = System.nanoTime() - startTime;
+			final long now = elapsed / NANOS_PER_MILLI;
+			
+			Entry due = null;
+			
+			synchronized(this) {
+				Entry last = null;
+				
+				while(tick < now) {
+					tick++;
+					
+					// Entries of later rounds stay in the slot
+					final int slot = (int)(tick & WHEEL_MASK);
+					
+					Entry previous = null;
+					Entry entry = heads[slot];
+					
+					while(entry != null) {
+						final Entry next = entry.next;
+						
+						if(entry.tick <= tick) {
+							if(previous == null) {
+								heads[slot] = next;
+							} else {
+								previous.next = next;
+							}
+							
+							if(tails[slot] == entry) {
+								tails[slot] = previous;
+							}
+							
+							entry.next = null;
+							
+							if(last == null) {
+								due = entry;
+							} else {
+								last.next = entry;
+							}
+							
+							last = entry;
+						} else {
+							previous = entry;
+						}
+						
+						entry = next;
+					}
+				}
+			}
+			
+			// Deliver outside of the lock, handlers are free to send a reply
+			while(due != null) {
+				final Entry next = due.next;
+				
+				try {
+					due.buffer.clear();
+					due.buffer.limit(due.length);
+					
+					due.handler.onPacketDelivered(due.address, due.buffer);
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+				
+				release(due);
+				
+				due = next;
+			}
+			
+			LockSupport.parkNanos(NANOS_PER_MILLI - elapsed % NANOS_PER_MILLI);
+		}
+	}
+	
+	private synchronized void schedule(Lane lane, ILinkHandler handler,
+			InetSocketAddress address, ByteBuffer packet) {
+		final int length = packet.remaining();
+		
+		if(!running || length > NetworkData.BUFFER_SIZE)
+			return;
+		
+		final long now = System.nanoTime() - startTime;
+		
+		// The packet takes up the link even when it is lost on the way
+		long departure = now;
+		
+		if(bandwidth > 0) {
+			departure = Math.max(now, lane.freeAt);
+			
+			if(departure - now > MAX_QUEUE_DELAY) {
+				overflowed++;
+				return;
+			}
+			
+			departure += length * 8L * 1000000000L / bandwidth;
+			lane.freeAt = departure;
+		}
+		
+		if(chance(loss)) {
+			dropped++;
+			return;
+		}
+		
+		long arrival = departure + getDelay();
+		
+		if(chance(reorder)) {
+			arrival = Math.max(arrival, lane.lastArrival) + REORDER_DELAY;
+			reordered++;
+		} else {
+			// Jitter alone doesn't reorder packets
+			arrival = Math.max(arrival, lane.lastArrival);
+			lane.lastArrival = arrival;
+		}
+		
+		add(handler, address, packet, length, arrival);
+		
+		if(chance(duplicate)) {
+			add(handler, address, packet, length, arrival + Math.abs(getDelay() - latency));
+			duplicated++;
+		}
+	}
+	
+	private void add(ILinkHandler handler, InetSocketAddress address, ByteBuffer packet,
+			int length, long arrival) {
+		if(available == 0) {
+			overflowed++;
+			return;
+		}
+		
+		final Entry entry = pool[--available];
+		pool[available] = null;
+		
+		final int position = packet.position();
+		packet.get(entry.data, 0, length);
+		packet.position(position);
+		
+		entry.length = length;
+		entry.handler = handler;
+		entry.address = address;
+		entry.tick = Math.max(tick + 1, (arrival + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI);
+		
+		final int slot = (int)(entry.tick & WHEEL_MASK);
+		
+		if(tails[slot] == null) {
+			heads[slot] = entry;
+		} else {
+			tails[slot].next = entry;
+		}
+		
+		tails[slot] = entry;
+	}
+	
+	private synchronized void release(Entry entry) {
+		entry.handler = null;
+		entry.address = null;
+		entry.next = null;
+		
+		pool[available++] = entry;
+		
+		delivered++;
+	}
+	
+	private long getDelay() {
+		if(jitter == 0)
+			return latency;
+		
+		return Math.max(0, latency + (long)((random.nextDouble() * 2 - 1) * jitter));
+	}
+	
+	private boolean chance(int percentage) {
+		return percentage > 0 && random.nextInt(100) < percentage;
+	}
+	
+	// Returns null unless the config conditions this side of the link
+	public static LinkConditioner create(String side) {
+		if(!side.equals(Config.getString(Config.LINK_CONDITIONER)))
+			return null;
+		
+		return new LinkConditioner(side, Config.getInt(Config.LINK_LATENCY),
+				Config.getInt(Config.LINK_JITTER), Config.getInt(Config.LINK_LOSS),
+				Config.getInt(Config.LINK_DUPLICATE), Config.getInt(Config.LINK_REORDER),
+				Config.getInt(Config.LINK_BANDWIDTH), Config.getInt(Config.LINK_SEED));
+	}
+	
+	private static class Lane {
+		private long freeAt;
+		private long lastArrival;
+	}
+	
+	private static class Entry {
+		private final byte[] data;
+		private final ByteBuffer buffer;
+		
+		private int length;
+		
+		private ILinkHandler handler;
+		private InetSocketAddress address;
+		
+		private long tick;
+		
+		private Entry next;
+		
+		private Entry() {
+			data = new byte[NetworkData.BUFFER_SIZE];
+			buffer = ByteBuffer.wrap(data);
+		}
+	}
+	
+	public interface ILinkHandler {
+		void onPacketDelivered(InetSocketAddress address, ByteBuffer packet) throws IOException;
+	}
+}
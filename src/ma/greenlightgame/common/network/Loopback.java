@@ -0,0 +1,118 @@
+package ma.greenlightgame.common.network;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import ma.greenlightgame.common.network.MessageQueue.IMessageConsumer;
+
+// In-process link between a listen server and the client of the player hosting it. Packets from
+// the client are handed to the server on the calling thread, packets from the server are queued
+// until the client polls. Neither side ever waits for a lock of the other, and nothing goes
+// through the kernel.
+public class Loopback {
+	private static final int QUEUE_SIZE = 256;
+	
+	// No real peer can send from the any address, the client gets a new port every connect so
+	// the server never mistakes it for the session of an earlier one
+	private static final InetAddress ADDRESS;
+	
+	private static volatile Loopback bound;
+	
+	private final int port;
+	
+	private final ILoopbackHandler server;
+	
+	private final MessageQueue<InetSocketAddress> toClient;
+	
+	private volatile InetSocketAddress client;
+	private int nextClientPort;
+	
+	static {
+		try {
+			ADDRESS = InetAddress.getByAddress(new byte[4]);
+		} catch(UnknownHostException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	private Loopback(int port, ILoopbackHandler server) {
+		this.port = port;
+		this.server = server;
+		
+		toClient = new MessageQueue<InetSocketAddress>(QUEUE_SIZE, NetworkData.MAX_PACKET_SIZE);
+	}
+	
+	// Lets clients in this process reach the server without a socket
+	public static Loopback bind(int port, ILoopbackHandler server) {
+		bound = new Loopback(port, server);
+		
+		return bound;
+	}
+	
+	// Returns null if no server in this process listens on the port
+	public static Loopback get(int port) {
+		final Loopback loopback = bound;
+		
+		return loopback != null && loopback.port == port ? loopback : null;
+	}
+	
+	public void close() {
+		if(bound == this) {
+			bound = null;
+		}
+		
+		client = null;
+	}
+	
+	// Returns the address the server sees the client at
+	public synchronized InetSocketAddress connect() {
+		nextClientPort = nextClientPort % NetworkData.MAX_PORT + 1;
+		client = new InetSocketAddress(ADDRESS, nextClientPort);
+		
+		return client;
+	}
+	
+	public void disconnect(InetSocketAddress address) {
+		if(address.equals(client)) {
+			client = null;
+		}
+	}
+	
+	public boolean isClient(InetSocketAddress address) {
+		return address.getAddress().equals(ADDRESS);
+	}
+	
+	// Packets of a client that disconnected are dropped, returns false if they are
+	public boolean sendToServer(InetSocketAddress address, ByteBuffer packet) {
+		if(!address.equals(client))
+			return false;
+		
+		server.onPacketReceived(address, packet);
+		
+		return true;
+	}
+	
+	public boolean sendToClient(InetSocketAddress address, ByteBuffer packet) {
+		if(!address.equals(client))
+			return false;
+		
+		return toClient.offer(address, packet);
+	}
+	
+	// Hands the packets the server sent since the last call to the consumer, along with the
+	// client they were sent to
+	public int receive(IMessageConsumer<InetSocketAddress> consumer) {
+		return toClient.drain(consumer);
+	}
+	
+	public int getPort() {
+		return port;
+	}
+	
+	public interface ILoopbackHandler {
+		// The packet is only valid during the call
+		void onPacketReceived(InetSocketAddress address, ByteBuffer packet);
+	}
+}
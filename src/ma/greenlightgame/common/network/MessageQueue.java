@@ -0,0 +1,126 @@
+package ma.greenlightgame.common.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded queue of messages from any number of network threads to the single game thread. Every
+// slot has a sequence that tells whose turn it is: producers claim a slot by moving the tail, the
+// consumer hands it back by moving the sequence a lap ahead. Messages are copied into
+// preallocated buffers, nothing is allocated or locked after construction.
+public class MessageQueue<T> {
+	private final int capacity;
+	private final int mask;
+	private final int messageSize;
+	
+	private final AtomicLongArray sequences;
+	
+	private final ByteBuffer[] messages;
+	private final Object[] senders;
+	
+	private final AtomicLong tail;
+	
+	// Only touched by the consumer
+	private long head;
+	
+	public MessageQueue(int capacity, int messageSize) {
+		if(Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Capacity has to be a power of two: " + capacity);
+		
+		this.capacity = capacity;
+		this.messageSize = messageSize;
+		
+		mask = capacity - 1;
+		
+		sequences = new AtomicLongArray(capacity);
+		messages = new ByteBuffer[capacity];
+		senders = new Object[capacity];
+		
+		for(int i = 0; i < capacity; i++) {
+			sequences.set(i, i);
+			messages[i] = ByteBuffer.allocate(messageSize);
+		}
+		
+		tail = new AtomicLong();
+	}
+	
+	// Copies the message into the queue, returns false if it is full or the message too large
+	public boolean offer(T sender, ByteBuffer message) {
+		if(message.remaining() > messageSize)
+			return false;
+		
+		long position = tail.get();
+		int slot;
+		
+		while(true) {
+			slot = (int)(position & mask);
+			
+			final long difference = sequences.get(slot) - position;
+			
+			if(difference == 0) {
+				if(tail.compareAndSet(position, position + 1))
+					break;
+				
+				position = tail.get();
+			} else if(difference < 0) {
+				// The consumer hasn't freed the slot a lap ago
+				return false;
+			} else {
+				// Another producer claimed it first
+				position = tail.get();
+			}
+		}
+		
+		final ByteBuffer buffer = messages[slot];
+		final int start = message.position();
+		
+		buffer.clear();
+		buffer.put(message);
+		buffer.flip();
+		
+		message.position(start);
+		
+		senders[slot] = sender;
+		
+		// Publish the slot
+		sequences.lazySet(slot, position + 1);
+		
+		return true;
+	}
+	
+	// Hands the messages that were queued before the call to the consumer, in order. Returns
+	// the number of messages handed over.
+	@SuppressWarnings("unchecked")
+	public int drain(IMessageConsumer<T> consumer) {
+		final long end = tail.get();
+		
+		int count = 0;
+		
+		while(head - end < 0) {
+			final int slot = (int)(head & mask);
+			
+			// Claimed, but the producer is still copying, the rest waits for the next drain
+			if(sequences.get(slot) != head + 1)
+				break;
+			
+			consumer.onMessage((T)senders[slot], messages[slot]);
+			
+			senders[slot] = null;
+			
+			sequences.lazySet(slot, head + capacity);
+			head++;
+			count++;
+		}
+		
+		return count;
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	public interface IMessageConsumer<T> {
+		// The message is only valid during the call
+		void onMessage(T sender, ByteBuffer message);
+	}
+}
@@ -0,0 +1,647 @@
+package ma.greenlightgame.common.network;
+
+import java.nio.ByteBuffer;
+
+import ma.greenlightgame.common.network.NetworkData.NetworkMessage;
+
+public class NetworkCodec {
+	// Field types
+	public static final int FIELD_ID = 0;    // u8
+	public static final int FIELD_BYTE = 1;    // u8
+	public static final int FIELD_BOOL = 2;    // u8, 0 or 1
+	public static final int FIELD_POSITION = 3;    // s16
+	public static final int FIELD_VELOCITY = 4;    // s16, fixed point 1/VELOCITY_SCALE
+	public static final int FIELD_ROTATION = 5;    // u16, 360 / 65536 degrees
+	public static final int FIELD_TICK = 6;    // s32
+	public static final int FIELD_TOKEN = 7;    // s64
+	public static final int FIELD_ROOM = 8;    // u16
+	public static final int FIELD_TIME = 9;    // s32, microseconds of the clock of the sender, wraps
+	
+	// Encoded messages are framed into packets by Connection
+	public static final int HEADER_SIZE = 1;    // Format: type
+	
+	private static final int[] FIELD_SIZES = {1, 1, 1, 2, 2, 2, 4, 8, 2, 4};
+	
+	private static final int[][] SCHEMA = {
+			// CLIENT_REQUEST_CONNECT
+			{FIELD_ROOM},
+			// CLIENT_ACCEPTED
+			{FIELD_ID, FIELD_TOKEN},
+			// CLIENT_REJECTED
+			{FIELD_BYTE},
+			// CLIENT_JOINED
+			{FIELD_ID},
+			// PLAYER_INFO
+			{FIELD_ID, FIELD_POSITION, FIELD_POSITION, FIELD_VELOCITY, FIELD_VELOCITY,
+					FIELD_ROTATION},
+			// PLAYER_COLLISION
+			{FIELD_ID, FIELD_POSITION, FIELD_POSITION, FIELD_BOOL},
+			// PLAYER_ATTACK
+			{FIELD_ID, FIELD_BYTE, FIELD_BOOL},
+			// PLAYER_HIT
+			{FIELD_ID, FIELD_ID},
+			// GAME_START
+			{FIELD_BYTE},
+			// WORLD_SNAPSHOT, followed by count delta encoded, bit packed entities
+			{FIELD_TICK, FIELD_TIME, FIELD_TICK, FIELD_TICK, FIELD_BYTE},
+			// SNAPSHOT_ACK
+			{FIELD_TICK},
+			// HEARTBEAT
+			{FIELD_TOKEN},
+			// CLIENT_LEFT
+			{FIELD_ID},
+			// PING
+			{FIELD_TICK, FIELD_TIME, FIELD_TIME, FIELD_TIME},
+			// PONG
+			{FIELD_TICK, FIELD_TIME, FIELD_TIME, FIELD_TIME},
+			// PLAYER_STATE
+			{FIELD_ID, FIELD_TICK, FIELD_POSITION, FIELD_POSITION, FIELD_VELOCITY, FIELD_VELOCITY,
+					FIELD_ROTATION},
+			// PLAYER_INPUT, followed by count commands
+			{FIELD_TICK, FIELD_BYTE}};
+	
+	// Size of a single command in PLAYER_INPUT, age, buttons and aim
+	public static final int COMMAND_SIZE = 4;
+	
+	// Commands further behind the newest one than this are left out of PLAYER_INPUT
+	public static final int MAX_COMMAND_AGE = 255;
+	
+	private static final int[] SIZES = new int[SCHEMA.length];
+	
+	// Snapshot delta mask
+	private static final int DELTA_X = 1;
+	private static final int DELTA_Y = 2;
+	private static final int DELTA_VELOCITY_X = 4;
+	private static final int DELTA_VELOCITY_Y = 8;
+	private static final int DELTA_ROTATION = 16;
+	private static final int DELTA_REMOVED = 32;
+	private static final int DELTA_ALL = 31;
+	
+	// Snapshot entities are bit packed: id, mask, then the fields in the mask. A full entity is
+	// 62 bits, most updates only carry a position or two.
+	private static final int ID_BITS = 8;
+	private static final int MASK_BITS = 6;
+	
+	// Size of a snapshot without entities, and what an entity costs to remove
+	public static final int SNAPSHOT_SIZE = HEADER_SIZE + 17;
+	public static final int REMOVED_BITS = ID_BITS + MASK_BITS;
+	
+	// Where the fields that differ per client start, baseline tick and last input
+	private static final int SNAPSHOT_CLIENT_OFFSET = HEADER_SIZE + 8;
+	
+	// The world is RENDER_WIDTH by RENDER_HEIGHT units, with some room for players leaving it
+	public static final Quantizer SNAPSHOT_X = new Quantizer(-64, 1, 11, false);
+	public static final Quantizer SNAPSHOT_Y = new Quantizer(-64, 1, 11, false);
+	
+	// Units per frame in steps of 1/8, vertical covers the jump force and terminal velocity
+	public static final Quantizer SNAPSHOT_VELOCITY_X = new Quantizer(-16, 0.125f, 8, false);
+	public static final Quantizer SNAPSHOT_VELOCITY_Y = new Quantizer(-32, 0.125f, 9, false);
+	
+	// Degrees in steps of 360 / 512
+	public static final Quantizer SNAPSHOT_ROTATION = new Quantizer(0, 360f / 512f, 9, true);
+	
+	private static final float VELOCITY_SCALE = 256f;
+	private static final float ROTATION_SCALE = 65536f / 360f;
+	
+	static {
+		for(int type = 0; type < SCHEMA.length; type++) {
+			int size = 0;
+			
+			for(int field : SCHEMA[type]) {
+				size += FIELD_SIZES[field];
+			}
+			
+			SIZES[type] = size;
+		}
+	}
+	
+	private final ByteBuffer buffer;
+	
+	private final BitWriter writer;
+	private final BitReader reader;
+	
+	public NetworkCodec() {
+		buffer = ByteBuffer.allocate(NetworkData.MAX_MESSAGE_SIZE);
+		
+		writer = new BitWriter();
+		reader = new BitReader();
+	}
+	
+	public ByteBuffer encode(int type) {
+		begin(type, 0);
+		
+		return end();
+	}
+	
+	public ByteBuffer encode(int type, int value) {
+		begin(type, 1);
+		
+		buffer.put((byte)value);
+		
+		return end();
+	}
+	
+	public ByteBuffer encodeConnectRequest(int roomId) {
+		begin(NetworkMessage.CLIENT_REQUEST_CONNECT, 1);
+		
+		buffer.putShort((short)roomId);
+		
+		return end();
+	}
+	
+	public ByteBuffer encodeClientAccepted(int id, long token) {
+		begin(NetworkMessage.CLIENT_ACCEPTED, 2);
+		
+		putId(buffer, id);
+		buffer.putLong(token);
+		
+		return end();
+	}
+	
+	public ByteBuffer encodeHeartbeat(long token) {
+		begin(NetworkMessage.HEARTBEAT, 1);
+		
+		buffer.putLong(token);
+		
+		return end();
+	}
+	
+	// The round trip time and jitter the client measured so far, for the statistics of the
+	// server
+	public ByteBuffer encodePing(int sequence, int time, int roundTripTime, int jitter) {
+		begin(NetworkMessage.PING, 4);
+		
+		buffer.putInt(sequence);
+		buffer.putInt(time);
+		buffer.putInt(roundTripTime);
+		buffer.putInt(jitter);
+		
+		return end();
+	}
+	
+	// Echoes the time of the ping, along with when the server received it and answered
+	public ByteBuffer encodePong(int sequence, int pingTime, int receiveTime, int sendTime) {
+		begin(NetworkMessage.PONG, 4);
+		
+		buffer.putInt(sequence);
+		buffer.putInt(pingTime);
+		buffer.putInt(receiveTime);
+		buffer.putInt(sendTime);
+		
+		return end();
+	}
+	
+	public ByteBuffer encodePlayerInfo(int id, int x, int y, float velocityX, float velocityY,
+			float rotation) {
+		begin(NetworkMessage.PLAYER_INFO, 6);
+		
+		putId(buffer, id);
+		putPosition(buffer, x);
+		putPosition(buffer, y);
+		putVelocity(buffer, velocityX);
+		putVelocity(buffer, velocityY);
+		putRotation(buffer, rotation);
+		
+		return end();
+	}
+	
+	// State of the local player after it applied the input with the given sequence
+	public ByteBuffer encodePlayerState(int id, int input, int x, int y, float velocityX,
+			float velocityY, float rotation) {
+		begin(NetworkMessage.PLAYER_STATE, 7);
+		
+		putId(buffer, id);
+		buffer.putInt(input);
+		putPosition(buffer, x);
+		putPosition(buffer, y);
+		putVelocity(buffer, velocityX);
+		putVelocity(buffer, velocityY);
+		putRotation(buffer, rotation);
+		
+		return end();
+	}
+	
+	// Commands are ordered newest first and carry how far their sequence is behind the newest
+	// one, those further behind than MAX_COMMAND_AGE are left out
+	public ByteBuffer encodePlayerInput(int count, int[] sequences, int[] buttons, float[] aims) {
+		begin(NetworkMessage.PLAYER_INPUT, 2);
+		
+		int included = 0;
+		
+		while(included < count && sequences[0] - sequences[included] <= MAX_COMMAND_AGE) {
+			included++;
+		}
+		
+		buffer.putInt(sequences[0]);
+		buffer.put((byte)included);
+		
+		for(int i = 0; i < included; i++) {
+			buffer.put((byte)(sequences[0] - sequences[i]));
+			buffer.put((byte)buttons[i]);
+			putRotation(buffer, aims[i]);
+		}
+		
+		return end();
+	}
+	
+	// Encodes the fields that changed since the baseline, a null baseline sends everything.
+	// The last input of the receiving client lets it reconcile its own player, the time is when
+	// the tick started on the server.
+	public ByteBuffer encodeSnapshot(Snapshot snapshot, Snapshot baseline, int lastInput,
+			int time) {
+		begin(NetworkMessage.WORLD_SNAPSHOT, 5);
+		
+		buffer.putInt(snapshot.getSequence());
+		buffer.putInt(time);
+		buffer.putInt(baseline == null ? -1 : baseline.getSequence());
+		buffer.putInt(lastInput);
+		
+		final int countPosition = buffer.position();
+		buffer.put((byte)0);
+		
+		writer.begin(buffer);
+		
+		final int count = snapshot.getCount();
+		final int baseCount = baseline == null ? 0 : baseline.getCount();
+		
+		int entries = 0;
+		int i = 0;
+		int j = 0;
+		
+		while(i < count || j < baseCount) {
+			final int id = i < count ? snapshot.getID(i) : Integer.MAX_VALUE;
+			final int baseId = j < baseCount ? baseline.getID(j) : Integer.MAX_VALUE;
+			
+			if(baseId < id) {
+				writer.write(baseId, ID_BITS);
+				writer.write(DELTA_REMOVED, MASK_BITS);
+				
+				entries++;
+				j++;
+				continue;
+			}
+			
+			int mask = DELTA_ALL;
+			
+			if(baseId == id) {
+				mask = getDeltaMask(snapshot, i, baseline, j);
+				
+				j++;
+			}
+			
+			if(mask != 0) {
+				writer.write(id, ID_BITS);
+				writer.write(mask, MASK_BITS);
+				
+				if((mask & DELTA_X) != 0) {
+					writer.write(snapshot.getQuantizedX(i), SNAPSHOT_X.getBits());
+				}
+				
+				if((mask & DELTA_Y) != 0) {
+					writer.write(snapshot.getQuantizedY(i), SNAPSHOT_Y.getBits());
+				}
+				
+				if((mask & DELTA_VELOCITY_X) != 0) {
+					writer.write(snapshot.getQuantizedVelocityX(i), SNAPSHOT_VELOCITY_X.getBits());
+				}
+				
+				if((mask & DELTA_VELOCITY_Y) != 0) {
+					writer.write(snapshot.getQuantizedVelocityY(i), SNAPSHOT_VELOCITY_Y.getBits());
+				}
+				
+				if((mask & DELTA_ROTATION) != 0) {
+					writer.write(snapshot.getQuantizedRotation(i), SNAPSHOT_ROTATION.getBits());
+				}
+				
+				entries++;
+			}
+			
+			i++;
+		}
+		
+		writer.flush();
+		
+		buffer.put(countPosition, (byte)entries);
+		
+		return end();
+	}
+	
+	// Bits an entity of the snapshot takes up when encoded against the baseline, 0 if it didn't
+	// change
+	public static int getEntityBits(Snapshot snapshot, int index, Snapshot baseline) {
+		final int baseIndex = baseline == null ? -1 : baseline.indexOf(snapshot.getID(index));
+		final int mask = baseIndex < 0 ? DELTA_ALL
+				: getDeltaMask(snapshot, index, baseline, baseIndex);
+		
+		if(mask == 0)
+			return 0;
+		
+		int bits = ID_BITS + MASK_BITS;
+		
+		if((mask & DELTA_X) != 0) {
+			bits += SNAPSHOT_X.getBits();
+		}
+		
+		if((mask & DELTA_Y) != 0) {
+			bits += SNAPSHOT_Y.getBits();
+		}
+		
+		if((mask & DELTA_VELOCITY_X) != 0) {
+			bits += SNAPSHOT_VELOCITY_X.getBits();
+		}
+		
+		if((mask & DELTA_VELOCITY_Y) != 0) {
+			bits += SNAPSHOT_VELOCITY_Y.getBits();
+		}
+		
+		if((mask & DELTA_ROTATION) != 0) {
+			bits += SNAPSHOT_ROTATION.getBits();
+		}
+		
+		return bits;
+	}
+	
+	private static int getDeltaMask(Snapshot snapshot, int index, Snapshot baseline,
+			int baseIndex) {
+		int mask = 0;
+		
+		if(snapshot.getQuantizedX(index) != baseline.getQuantizedX(baseIndex)) {
+			mask |= DELTA_X;
+		}
+		
+		if(snapshot.getQuantizedY(index) != baseline.getQuantizedY(baseIndex)) {
+			mask |= DELTA_Y;
+		}
+		
+		if(snapshot.getQuantizedVelocityX(index) != baseline.getQuantizedVelocityX(baseIndex)) {
+			mask |= DELTA_VELOCITY_X;
+		}
+		
+		if(snapshot.getQuantizedVelocityY(index) != baseline.getQuantizedVelocityY(baseIndex)) {
+			mask |= DELTA_VELOCITY_Y;
+		}
+		
+		if(snapshot.getQuantizedRotation(index) != baseline.getQuantizedRotation(baseIndex)) {
+			mask |= DELTA_ROTATION;
+		}
+		
+		return mask;
+	}
+	
+	// Rewrites the fields of an encoded snapshot that differ per client, so one that was encoded
+	// against an identical baseline can be sent as is
+	public static void setSnapshotClient(ByteBuffer message, int baselineTick, int lastInput) {
+		message.putInt(message.position() + SNAPSHOT_CLIENT_OFFSET, baselineTick);
+		message.putInt(message.position() + SNAPSHOT_CLIENT_OFFSET + 4, lastInput);
+	}
+	
+	public static int getMaxSnapshotSize(int entities) {
+		final int bits = ID_BITS + MASK_BITS + SNAPSHOT_X.getBits() + SNAPSHOT_Y.getBits()
+				+ SNAPSHOT_VELOCITY_X.getBits() + SNAPSHOT_VELOCITY_Y.getBits()
+				+ SNAPSHOT_ROTATION.getBits();
+		
+		return SNAPSHOT_SIZE + (entities * bits + 7) / 8;
+	}
+	
+	public ByteBuffer encodeSnapshotAck(int tick) {
+		begin(NetworkMessage.SNAPSHOT_ACK, 1);
+		
+		buffer.putInt(tick);
+		
+		return end();
+	}
+	
+	public ByteBuffer encodePlayerCollision(int id, int objectX, int objectY, boolean colliding) {
+		begin(NetworkMessage.PLAYER_COLLISION, 4);
+		
+		putId(buffer, id);
+		putPosition(buffer, objectX);
+		putPosition(buffer, objectY);
+		putBool(buffer, colliding);
+		
+		return end();
+	}
+	
+	public ByteBuffer encodePlayerAttack(int id, int side, boolean attacking) {
+		begin(NetworkMessage.PLAYER_ATTACK, 3);
+		
+		putId(buffer, id);
+		buffer.put((byte)side);
+		putBool(buffer, attacking);
+		
+		return end();
+	}
+	
+	public ByteBuffer encodePlayerHit(int id, int fromId) {
+		begin(NetworkMessage.PLAYER_HIT, 2);
+		
+		putId(buffer, id);
+		putId(buffer, fromId);
+		
+		return end();
+	}
+	
+	private void begin(int type, int fields) {
+		if(type < 0 || type >= SCHEMA.length || SCHEMA[type].length != fields)
+			throw new IllegalArgumentException("Message type " + type + " does not have "
+					+ fields + " fields");
+		
+		buffer.clear();
+		buffer.put((byte)type);
+	}
+	
+	private ByteBuffer end() {
+		buffer.flip();
+		
+		return buffer;
+	}
+	
+	// Validates the message header and leaves the buffer at the first field, -1 if malformed
+	public static int decodeType(ByteBuffer message) {
+		if(message.remaining() < HEADER_SIZE)
+			return -1;
+		
+		final int type = message.get() & 0xFF;
+		
+		if(type >= SCHEMA.length || message.remaining() < SIZES[type])
+			return -1;
+		
+		return type;
+	}
+	
+	public static int getNumTypes() {
+		return SCHEMA.length;
+	}
+	
+	public static int getSize(int type) {
+		return HEADER_SIZE + SIZES[type];
+	}
+	
+	// Applies the entities of a snapshot on top of the baseline, returns false if malformed
+	public boolean getSnapshot(ByteBuffer message, Snapshot baseline, Snapshot target) {
+		final int entries = message.get() & 0xFF;
+		final int baseCount = baseline == null ? 0 : baseline.getCount();
+		
+		reader.begin(message);
+		
+		int j = 0;
+		
+		for(int entry = 0; entry < entries; entry++) {
+			final int id = reader.read(ID_BITS);
+			final int mask = reader.read(MASK_BITS);
+			
+			if(reader.isOverflowed())
+				return false;
+			
+			while(j < baseCount && baseline.getID(j) < id) {
+				copy(baseline, j++, target);
+			}
+			
+			int x = 0;
+			int y = 0;
+			int velocityX = 0;
+			int velocityY = 0;
+			int rotation = 0;
+			
+			if(j < baseCount && baseline.getID(j) == id) {
+				x = baseline.getQuantizedX(j);
+				y = baseline.getQuantizedY(j);
+				velocityX = baseline.getQuantizedVelocityX(j);
+				velocityY = baseline.getQuantizedVelocityY(j);
+				rotation = baseline.getQuantizedRotation(j);
+				
+				j++;
+			}
+			
+			if((mask & DELTA_X) != 0) {
+				x = reader.read(SNAPSHOT_X.getBits());
+			}
+			
+			if((mask & DELTA_Y) != 0) {
+				y = reader.read(SNAPSHOT_Y.getBits());
+			}
+			
+			if((mask & DELTA_VELOCITY_X) != 0) {
+				velocityX = reader.read(SNAPSHOT_VELOCITY_X.getBits());
+			}
+			
+			if((mask & DELTA_VELOCITY_Y) != 0) {
+				velocityY = reader.read(SNAPSHOT_VELOCITY_Y.getBits());
+			}
+			
+			if((mask & DELTA_ROTATION) != 0) {
+				rotation = reader.read(SNAPSHOT_ROTATION.getBits());
+			}
+			
+			if(reader.isOverflowed())
+				return false;
+			
+			if((mask & DELTA_REMOVED) == 0) {
+				target.addQuantized(id, x, y, velocityX, velocityY, rotation);
+			}
+		}
+		
+		reader.end();
+		
+		while(j < baseCount) {
+			copy(baseline, j++, target);
+		}
+		
+		return true;
+	}
+	
+	private static void copy(Snapshot from, int index, Snapshot to) {
+		to.addQuantized(from.getID(index), from.getQuantizedX(index), from.getQuantizedY(index),
+				from.getQuantizedVelocityX(index), from.getQuantizedVelocityY(index),
+				from.getQuantizedRotation(index));
+	}
+	
+	public static int getTick(ByteBuffer message) {
+		return message.getInt();
+	}
+	
+	public static int getTime(ByteBuffer message) {
+		return message.getInt();
+	}
+	
+	// Converts a time of System.nanoTime to FIELD_TIME
+	public static int toTime(long nanos) {
+		return (int)(nanos / 1000);
+	}
+	
+	public static int getRoom(ByteBuffer message) {
+		return message.getShort() & 0xFFFF;
+	}
+	
+	public static long getToken(ByteBuffer message) {
+		return message.getLong();
+	}
+	
+	public static int getId(ByteBuffer message) {
+		return message.get() & 0xFF;
+	}
+	
+	public static int getByte(ByteBuffer message) {
+		return message.get() & 0xFF;
+	}
+	
+	public static boolean getBool(ByteBuffer message) {
+		return message.get() != 0;
+	}
+	
+	public static int getPosition(ByteBuffer message) {
+		return message.getShort();
+	}
+	
+	public static float getVelocity(ByteBuffer message) {
+		return dequantizeVelocity(message.getShort());
+	}
+	
+	public static float getRotation(ByteBuffer message) {
+		return dequantizeRotation(message.getShort() & 0xFFFF);
+	}
+	
+	public static void putId(ByteBuffer message, int id) {
+		message.put((byte)id);
+	}
+	
+	public static void putBool(ByteBuffer message, boolean value) {
+		message.put((byte)(value ? 1 : 0));
+	}
+	
+	public static void putPosition(ByteBuffer message, int position) {
+		message.putShort((short)quantizePosition(position));
+	}
+	
+	public static void putVelocity(ByteBuffer message, float velocity) {
+		message.putShort((short)quantizeVelocity(velocity));
+	}
+	
+	public static void putRotation(ByteBuffer message, float rotation) {
+		message.putShort((short)quantizeRotation(rotation));
+	}
+	
+	public static int quantizePosition(int position) {
+		return clamp(position, Short.MIN_VALUE, Short.MAX_VALUE);
+	}
+	
+	public static int quantizeVelocity(float velocity) {
+		return clamp(Math.round(velocity * VELOCITY_SCALE), Short.MIN_VALUE, Short.MAX_VALUE);
+	}
+	
+	public static int quantizeRotation(float rotation) {
+		return Math.round(rotation * ROTATION_SCALE) & 0xFFFF;
+	}
+	
+	public static float dequantizeVelocity(int velocity) {
+		return velocity / VELOCITY_SCALE;
+	}
+	
+	public static float dequantizeRotation(int rotation) {
+		return rotation / ROTATION_SCALE;
+	}
+	
+	private static int clamp(int value, int min, int max) {
+		return value < min ? min : value > max ? max : value;
+	}
+}
@@ -2,29 +2,75 @@ package ma.greenlightgame.common.network;
 
 public class NetworkData {
 	public class NetworkMessage {
-		public static final int CLIENT_REQUEST_CONNECT = 0;
-		public static final int CLIENT_ACCEPTED = 1;    // Format: ID
+		public static final int CLIENT_REQUEST_CONNECT = 0;    // Format: roomID
+		public static final int CLIENT_ACCEPTED = 1;    // Format: ID, token
 		public static final int CLIENT_REJECTED = 2;    // Format:
-														// Reason[0=playing/1=full/2=clientExists]
+														// Reason[0=playing/1=full/2=clientExists/
+														// 3=noRoom]
 		public static final int CLIENT_JOINED = 3;    // Format: ID
 		
 		public static final int PLAYER_INFO = 4;    // Format: ID, X, Y, velocityX, velocityY, rotation
 		public static final int PLAYER_COLLISION = 5;    // Format: ID, objectX, objectY, collides
 		public static final int PLAYER_ATTACK = 6;    // Format: ID, side, attacking
-		public static final int PLAYER_HIT = 7;    // Format: ID* fromID**
+		public static final int PLAYER_HIT = 7;    // Format: ID, fromID
 		
 		public static final int GAME_START = 8;    // Format: LevelID
 		
-		// Legend:
-		// * = Only for client->server
-		// ** = Only for server->client
+		public static final int WORLD_SNAPSHOT = 9;    // Format: tick, time, baselineTick, lastInput,
+														// count, count * (ID, mask, changed
+														// fields)
+		public static final int SNAPSHOT_ACK = 10;    // Format: tick
+		
+		public static final int HEARTBEAT = 11;    // Format: token
+		public static final int CLIENT_LEFT = 12;    // Format: ID
+		
+		public static final int PING = 13;    // Format: sequence, time, roundTripTime, jitter
+		public static final int PONG = 14;    // Format: sequence, pingTime, receiveTime, sendTime
+		
+		public static final int PLAYER_STATE = 15;    // Format: ID, input, X, Y, velocityX,
+														// velocityY, rotation
+		public static final int PLAYER_INPUT = 16;    // Format: input, count, count * (age,
+														// buttons, aim), newest first
 	}
 	
-	public static final String SEPERATOR = "/";
+	public class InputButton {
+		public static final int LEFT = 1;
+		public static final int RIGHT = 2;
+		public static final int JUMP = 4;
+		public static final int ATTACK = 8;
+	}
+	
+	public static final int PROTOCOL_VERSION = 6;
+	
+	public static final int SNAPSHOT_HISTORY = 32;
+	
+	// Commands only go out when they change, every change is sent this many times and the input
+	// messages carry this many of the newest changes. Covers as many lost packets in a row.
+	public static final int INPUT_REDUNDANCY = 4;
+	
+	public static final int MAX_ID = 255;
+	
+	// Players in a room
+	public static final int MAX_CLIENTS = 4;
+	
+	// Room players join when they don't ask for one
+	public static final int DEFAULT_ROOM = 0;
 	
 	public static final String POSITION = "p";
 	
 	public static final int MAX_PORT = 65535;
 	public static final int SO_TIMEOUT = 10000;
+	public static final int HEARTBEAT_INTERVAL = 1000;
+	
+	// Largest datagram, the kernel buffers of the sockets are configured separately
 	public static final int BUFFER_SIZE = 1024;
+	
+	// Largest packet built by coalescing messages, stays below BUFFER_SIZE and the path MTU
+	public static final int MAX_PACKET_SIZE = 1000;
+	
+	// IPv4 and UDP headers, counted against the bandwidth of a client
+	public static final int UDP_OVERHEAD = 28;
+	
+	// Larger messages are sent in fragments of a packet each
+	public static final int MAX_MESSAGE_SIZE = 8192;
 }
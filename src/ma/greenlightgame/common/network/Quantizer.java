@@ -0,0 +1,53 @@
+package ma.greenlightgame.common.network;
+
+// Maps a float onto a fixed number of bits with a fixed step. Values outside of the range are
+// clamped to it, or wrapped around for angles. Steps should be a power of two (or 360 divided
+// by one) so a dequantized value quantizes to the same value again.
+public class Quantizer {
+	private final float min;
+	private final float step;
+	private final int bits;
+	private final int maxValue;
+	private final boolean wrap;
+	
+	public Quantizer(float min, float step, int bits, boolean wrap) {
+		if(bits < 1 || bits > 31)
+			throw new IllegalArgumentException("Can't quantize to " + bits + " bits");
+		
+		this.min = min;
+		this.step = step;
+		this.bits = bits;
+		this.wrap = wrap;
+		
+		maxValue = (1 << bits) - 1;
+	}
+	
+	public int quantize(float value) {
+		final int quantized = Math.round((value - min) / step);
+		
+		if(wrap)
+			return quantized & maxValue;
+		
+		return quantized < 0 ? 0 : quantized > maxValue ? maxValue : quantized;
+	}
+	
+	public float dequantize(int value) {
+		return min + value * step;
+	}
+	
+	public boolean isInRange(float value) {
+		return wrap || (value >= getMin() && value <= getMax());
+	}
+	
+	public float getMin() {
+		return min;
+	}
+	
+	public float getMax() {
+		return dequantize(maxValue);
+	}
+	
+	public int getBits() {
+		return bits;
+	}
+}
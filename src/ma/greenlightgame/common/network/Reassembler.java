@@ -0,0 +1,132 @@
+package ma.greenlightgame.common.network;
+
+import java.nio.ByteBuffer;
+
+// Puts fragmented messages back together. Only a few messages are assembled at once, a new one
+// takes the place of one that timed out or else the oldest. Fragments can arrive in any order,
+// every fragment but the last one of a message has the same size.
+public class Reassembler {
+	public static final int MAX_FRAGMENTS = 64;
+	
+	private final ByteBuffer[] buffers;
+	
+	private final int[] ids;
+	private final int[] counts;
+	private final int[] missing;
+	private final int[] lengths;
+	private final long[] received;
+	private final long[] startTimes;
+	private final boolean[] active;
+	
+	private final long timeout;
+	
+	private long discarded;
+	
+	public Reassembler(int size, int maxMessageSize, long timeout) {
+		buffers = new ByteBuffer[size];
+		
+		ids = new int[size];
+		counts = new int[size];
+		missing = new int[size];
+		lengths = new int[size];
+		received = new long[size];
+		startTimes = new long[size];
+		active = new boolean[size];
+		
+		for(int i = 0; i < size; i++) {
+			buffers[i] = ByteBuffer.allocate(maxMessageSize);
+		}
+		
+		this.timeout = timeout;
+	}
+	
+	// Returns the message once its last fragment arrives, it is valid until the next call.
+	// Fragments that don't fit the message they belong to are dropped.
+	public ByteBuffer add(int id, int index, int count, int fragmentSize, ByteBuffer fragment,
+			long now) {
+		final int length = fragment.remaining();
+		final int offset = index * fragmentSize;
+		
+		if(count < 1 || count > MAX_FRAGMENTS || index >= count || length > fragmentSize
+				|| (index < count - 1 && length != fragmentSize)
+				|| offset + length > buffers[0].capacity())
+			return null;
+		
+		final int slot = getSlot(id, count, now);
+		final long bit = 1L << index;
+		
+		if((received[slot] & bit) != 0)
+			return null;
+		
+		final ByteBuffer buffer = buffers[slot];
+		
+		buffer.limit(buffer.capacity());
+		buffer.position(offset);
+		buffer.put(fragment);
+		
+		received[slot] |= bit;
+		missing[slot]--;
+		
+		if(index == count - 1) {
+			lengths[slot] = offset + length;
+		}
+		
+		if(missing[slot] > 0)
+			return null;
+		
+		active[slot] = false;
+		
+		buffer.position(0);
+		buffer.limit(lengths[slot]);
+		
+		return buffer;
+	}
+	
+	// Messages that timed out or were pushed out before they were complete
+	public long getDiscarded() {
+		return discarded;
+	}
+	
+	private int getSlot(int id, int count, long now) {
+		int free = -1;
+		int oldest = 0;
+		
+		for(int i = 0; i < active.length; i++) {
+			if(active[i] && now - startTimes[i] > timeout) {
+				active[i] = false;
+				discarded++;
+			}
+			
+			if(!active[i]) {
+				if(free < 0) {
+					free = i;
+				}
+				
+				continue;
+			}
+			
+			if(ids[i] == id && counts[i] == count)
+				return i;
+			
+			if(startTimes[i] - startTimes[oldest] < 0 || !active[oldest]) {
+				oldest = i;
+			}
+		}
+		
+		int slot = free;
+		
+		if(slot < 0) {
+			slot = oldest;
+			discarded++;
+		}
+		
+		ids[slot] = id;
+		counts[slot] = count;
+		missing[slot] = count;
+		received[slot] = 0;
+		startTimes[slot] = now;
+		active[slot] = true;
+		
+		return slot;
+	}
+}
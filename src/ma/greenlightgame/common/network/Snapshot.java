@@ -0,0 +1,145 @@
+package ma.greenlightgame.common.network;
+
+import java.util.Arrays;
+
+public class Snapshot {
+	private final int[] ids;
+	
+	// Values are stored quantized so that deltas compare exactly what goes over the wire
+	private final int[] x;
+	private final int[] y;
+	private final int[] velocityX;
+	private final int[] velocityY;
+	private final int[] rotation;
+	
+	private int sequence;
+	private int count;
+	
+	public Snapshot(int capacity) {
+		ids = new int[capacity];
+		x = new int[capacity];
+		y = new int[capacity];
+		velocityX = new int[capacity];
+		velocityY = new int[capacity];
+		rotation = new int[capacity];
+		
+		sequence = -1;
+	}
+	
+	public void clear(int sequence) {
+		this.sequence = sequence;
+		
+		count = 0;
+	}
+	
+	// Entities have to be added in ascending ID order. Returns false if a value was outside the
+	// range of its quantizer, it is stored clamped.
+	public boolean add(int id, int x, int y, float velocityX, float velocityY, float rotation) {
+		addQuantized(id, NetworkCodec.SNAPSHOT_X.quantize(x), NetworkCodec.SNAPSHOT_Y.quantize(y),
+				NetworkCodec.SNAPSHOT_VELOCITY_X.quantize(velocityX),
+				NetworkCodec.SNAPSHOT_VELOCITY_Y.quantize(velocityY),
+				NetworkCodec.SNAPSHOT_ROTATION.quantize(rotation));
+		
+		return NetworkCodec.SNAPSHOT_X.isInRange(x) && NetworkCodec.SNAPSHOT_Y.isInRange(y)
+				&& NetworkCodec.SNAPSHOT_VELOCITY_X.isInRange(velocityX)
+				&& NetworkCodec.SNAPSHOT_VELOCITY_Y.isInRange(velocityY)
+				&& NetworkCodec.SNAPSHOT_ROTATION.isInRange(rotation);
+	}
+	
+	// Copies an entity of another snapshot as it is
+	public void add(Snapshot from, int index) {
+		addQuantized(from.ids[index], from.x[index], from.y[index], from.velocityX[index],
+				from.velocityY[index], from.rotation[index]);
+	}
+	
+	void addQuantized(int id, int x, int y, int velocityX, int velocityY, int rotation) {
+		if(count == ids.length)
+			throw new IndexOutOfBoundsException("Snapshot is full (" + ids.length + ")");
+		
+		if(count > 0 && ids[count - 1] >= id)
+			throw new IllegalArgumentException("Entity " + id + " added out of order");
+		
+		ids[count] = id;
+		this.x[count] = x;
+		this.y[count] = y;
+		this.velocityX[count] = velocityX;
+		this.velocityY[count] = velocityY;
+		this.rotation[count] = rotation;
+		
+		count++;
+	}
+	
+	public int getSequence() {
+		return sequence;
+	}
+	
+	public int getCount() {
+		return count;
+	}
+	
+	// Returns true if both hold the same entities in the same state
+	public boolean matches(Snapshot other) {
+		if(other == null || other.count != count)
+			return false;
+		
+		for(int i = 0; i < count; i++) {
+			if(ids[i] != other.ids[i] || x[i] != other.x[i] || y[i] != other.y[i]
+					|| velocityX[i] != other.velocityX[i] || velocityY[i] != other.velocityY[i]
+					|| rotation[i] != other.rotation[i])
+				return false;
+		}
+		
+		return true;
+	}
+	
+	// Returns the index of the entity, or -1 if it isn't in the snapshot
+	public int indexOf(int id) {
+		final int index = Arrays.binarySearch(ids, 0, count, id);
+		
+		return index >= 0 ? index : -1;
+	}
+	
+	public int getID(int index) {
+		return ids[index];
+	}
+	
+	public int getX(int index) {
+		return Math.round(NetworkCodec.SNAPSHOT_X.dequantize(x[index]));
+	}
+	
+	public int getY(int index) {
+		return Math.round(NetworkCodec.SNAPSHOT_Y.dequantize(y[index]));
+	}
+	
+	public float getVelocityX(int index) {
+		return NetworkCodec.SNAPSHOT_VELOCITY_X.dequantize(velocityX[index]);
+	}
+	
+	public float getVelocityY(int index) {
+		return NetworkCodec.SNAPSHOT_VELOCITY_Y.dequantize(velocityY[index]);
+	}
+	
+	public float getRotation(int index) {
+		return NetworkCodec.SNAPSHOT_ROTATION.dequantize(rotation[index]);
+	}
+	
+	int getQuantizedX(int index) {
+		return x[index];
+	}
+	
+	int getQuantizedY(int index) {
+		return y[index];
+	}
+	
+	int getQuantizedVelocityX(int index) {
+		return velocityX[index];
+	}
+	
+	int getQuantizedVelocityY(int index) {
+		return velocityY[index];
+	}
+	
+	int getQuantizedRotation(int index) {
+		return rotation[index];
+	}
+}
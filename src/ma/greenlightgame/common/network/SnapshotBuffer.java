@@ -0,0 +1,48 @@
+package ma.greenlightgame.common.network;
+
+public class SnapshotBuffer {
+	private final Snapshot[] snapshots;
+	
+	public SnapshotBuffer(int size, int capacity) {
+		snapshots = new Snapshot[size];
+		
+		for(int i = 0; i < size; i++) {
+			snapshots[i] = new Snapshot(capacity);
+		}
+	}
+	
+	// Claims the slot for the sequence, overwriting the oldest snapshot
+	public Snapshot next(int sequence) {
+		final Snapshot snapshot = snapshots[slot(sequence)];
+		snapshot.clear(sequence);
+		
+		return snapshot;
+	}
+	
+	// Returns null if the snapshot was never stored or has been overwritten
+	public Snapshot get(int sequence) {
+		if(sequence < 0)
+			return null;
+		
+		final Snapshot snapshot = snapshots[slot(sequence)];
+		
+		if(snapshot.getSequence() != sequence)
+			return null;
+		
+		return snapshot;
+	}
+	
+	public void clear() {
+		for(Snapshot snapshot : snapshots) {
+			snapshot.clear(-1);
+		}
+	}
+	
+	public int getSize() {
+		return snapshots.length;
+	}
+	
+	private int slot(int sequence) {
+		return (sequence & Integer.MAX_VALUE) % snapshots.length;
+	}
+}
@@ -1,9 +1,9 @@
 package ma.greenlightgame.common.screen;
 
 import ma.greenlightgame.client.renderer.Texture;
+import ma.greenlightgame.common.Game;
 import ma.greenlightgame.common.screen.components.Button;
 import ma.greenlightgame.common.screen.components.Button.ButtonActionHandler;
-import ma.greenlightgame.server.Server;
 
 public class ScreenHostMenu implements Screen {
 	private static final int BTN_PLAY = new Texture("GUI/Buttons/play.png").getId();
@@ -43,7 +43,9 @@ public class ScreenHostMenu implements Screen {
 			public void onClick(Button button) {
 				System.out.println("Pressed button!");
 				
-				Server.start(0);
+				if(Game.getServer() != null) {
+					Game.getServer().start(0);
+				}
 			}
 		})};
 	}
@@ -27,6 +27,11 @@ public class Utils {
 		return ByteBuffer.wrap(imageBytes);
 	}
 	
+	// 0 when the angle faces left, 1 when it faces right
+	public static int getSide(float angle) {
+		return angle > 90 && angle < 270 ? 0 : 1;
+	}
+	
 	public static float angleTo(int x1, int y1, int x2, int y2) {
 		float angle = (float)Math.toDegrees(Math.atan2(y2 - y1, x2 - x1));
 		
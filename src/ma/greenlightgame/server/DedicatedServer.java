@@ -0,0 +1,146 @@
+package ma.greenlightgame.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import ma.greenlightgame.common.config.Config;
+import ma.greenlightgame.common.network.NetworkData;
+import ma.greenlightgame.server.client.ServerClientData;
+import ma.greenlightgame.server.room.Room;
+import ma.greenlightgame.server.room.RoomManager;
+
+// Headless server, nothing in here may load classes from the client package
+public class DedicatedServer {
+	private final Server server;
+	
+	private volatile boolean running;
+	
+	private DedicatedServer(int port) {
+		final long start = System.nanoTime();
+		
+		server = new Server(port);
+		running = true;
+		
+		Runtime.getRuntime().addShutdownHook(new Thread("Server shutdown") {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		});
+		
+		System.out.println("Dedicated server ready in " + (System.nanoTime() - start) / 1000000
+				+ "ms, type help for a list of commands");
+	}
+	
+	private void readCommands() {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+		
+		try {
+			String line;
+			
+			while(running && (line = reader.readLine()) != null) {
+				onCommand(line.trim().split("\\s+"));
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		
+		// Without a console the server keeps running until the process is stopped
+	}
+	
+	private void onCommand(String[] args) {
+		final String command = args[0].toLowerCase();
+		
+		if(command.isEmpty())
+			return;
+		
+		try {
+			if(command.equals("start")) {
+				final int roomId = args.length > 1 ? Integer.parseInt(args[1])
+						: NetworkData.DEFAULT_ROOM;
+				final int levelId = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+				
+				if(server.start(roomId, levelId)) {
+					System.out.println("Started room " + roomId + " on level " + levelId);
+				} else {
+					System.out.println("Room " + roomId + " has no players");
+				}
+			} else if(command.equals("status")) {
+				printStatus();
+			} else if(command.equals("stop")) {
+				shutdown();
+			} else if(command.equals("help")) {
+				System.out.println("start [room] [level]  Starts the match in a room");
+				System.out.println("status                Lists the rooms and the latency of their players");
+				System.out.println("stop                  Stops the server");
+			} else {
+				System.out.println("Unknown command: " + command);
+			}
+		} catch(NumberFormatException e) {
+			System.out.println("Invalid number: " + e.getMessage());
+		}
+	}
+	
+	private void printStatus() {
+		final RoomManager roomManager = server.getRoomManager();
+		final Runtime runtime = Runtime.getRuntime();
+		
+		int rooms = 0;
+		int clients = 0;
+		
+		for(int i = 0; i < roomManager.getNumRooms(); i++) {
+			final Room room = roomManager.getRoom(i);
+			
+			if(room != null && room.getNumClients() > 0) {
+				System.out.println("Room " + i + ": " + room.getNumClients() + " players"
+						+ (room.isStarted() ? ", in-game" : ""));
+				
+				printLatencies(room);
+				
+				rooms++;
+				clients += room.getNumClients();
+			}
+		}
+		
+		System.out.println(clients + " players in " + rooms + " rooms, "
+				+ (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024) + "MB used");
+	}
+	
+	// As the players measured them, 0 until their first ping
+	private void printLatencies(Room room) {
+		for(int i = 0; i < room.getMaxClients(); i++) {
+			final ServerClientData client = room.getClient(i);
+			
+			if(client != null) {
+				System.out.println(String.format("  Player %d: %.1f ms, jitter %.1f ms", i,
+						client.getRoundTripTime() / 1000f, client.getJitter() / 1000f));
+			}
+		}
+	}
+	
+	private synchronized void shutdown() {
+		if(!running)
+			return;
+		
+		running = false;
+		server.destroy();
+	}
+	
+	public static void main(String[] args) {
+		Config.load();
+		
+		int port = Config.getInt(Config.SERVER_PORT);
+		
+		if(args.length > 0) {
+			try {
+				port = Integer.parseInt(args[0]);
+			} catch(NumberFormatException e) {
+				System.err.println("Invalid port: " + args[0]);
+				return;
+			}
+		}
+		
+		new DedicatedServer(port).readCommands();
+	}
+}
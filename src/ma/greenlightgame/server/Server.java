@@ -1,65 +1,74 @@
 package ma.greenlightgame.server;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 
-import ma.greenlightgame.client.Client;
 import ma.greenlightgame.common.config.Config;
 import ma.greenlightgame.common.network.NetworkData;
+import ma.greenlightgame.server.metrics.MetricsReporter;
+import ma.greenlightgame.server.metrics.ServerMetrics;
 import ma.greenlightgame.server.network.UDPServer;
 import ma.greenlightgame.server.network.UDPServerHandler;
+import ma.greenlightgame.server.room.Room;
+import ma.greenlightgame.server.room.RoomManager;
 
 public class Server {
-	private static UDPServerHandler udpServerHandler;
-	private static UDPServer udpServer;
+	private UDPServerHandler udpServerHandler;
+	private UDPServer udpServer;
 	
-	private static boolean ingame;
+	private RoomManager roomManager;
 	
-	public Server() {
+	private MetricsReporter metricsReporter;
+	
+	public Server(int port) {
+		roomManager = new RoomManager(Config.getInt(Config.MAX_ROOMS),
+				Config.getInt(Config.ROOM_WORKERS), Config.getInt(Config.SERVER_TICK_RATE));
+		
 		try {
-			udpServerHandler = new UDPServerHandler();
-			udpServer = new UDPServer(Config.getInt(Config.LAST_SERVER_PORT), udpServerHandler);
+			udpServerHandler = new UDPServerHandler(roomManager);
+			udpServer = UDPServer.create(port, udpServerHandler);
 		} catch(IOException e) {
 			e.printStackTrace();
 		}
 		
-		ingame = false;
+		roomManager.start();
 		
-		try {
-			Client.connect(InetAddress.getLocalHost(), Config.getInt(Config.LAST_SERVER_PORT));
-		} catch(UnknownHostException e) {
-			e.printStackTrace();
-		}
+		ServerMetrics.get().register();
+		
+		metricsReporter = new MetricsReporter(ServerMetrics.get(),
+				Config.getInt(Config.METRICS_INTERVAL), Config.getString(Config.METRICS_CSV));
+		metricsReporter.start();
 	}
 	
 	public void update(float delta) {}
 	
 	public void destroy() {
-		udpServerHandler.destroy();
-	}
-	
-	public static void sendUDP(InetAddress address, int port, int type, Object... message) {
-		String msg = Integer.toString(type) + NetworkData.SEPERATOR;
+		metricsReporter.stop();
+		ServerMetrics.get().unregister();
 		
-		for(Object element : message) {
-			msg += element + NetworkData.SEPERATOR;
-		}
+		roomManager.stop();
 		
-		try {
-			udpServer.send(address, port, msg.getBytes("UTF-8"));
-		} catch(IOException e) {
-			e.printStackTrace();
+		if(udpServer != null) {
+			udpServer.close();
 		}
 	}
 	
-	public static void start(int levelId) {
-		ingame = true;
+	public void start(int levelId) {
+		start(NetworkData.DEFAULT_ROOM, levelId);
+	}
+	
+	// Returns false if nobody is in the room
+	public boolean start(int roomId, int levelId) {
+		final Room room = roomManager.getRoom(roomId);
+		
+		if(room == null || room.getNumClients() == 0)
+			return false;
+		
+		room.startGame(levelId);
 		
-		udpServerHandler.startGame(levelId);
+		return true;
 	}
 	
-	public static boolean isStarted() {
-		return ingame;
+	public RoomManager getRoomManager() {
+		return roomManager;
 	}
-}
\ No newline at end of file
+}
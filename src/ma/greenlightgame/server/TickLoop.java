@@ -0,0 +1,100 @@
+package ma.greenlightgame.server;
+
+public class TickLoop implements Runnable {
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	private static final long NANOS_PER_MILLI = 1000000L;
+	
+	// Number of ticks the loop may fall behind before it skips ahead
+	private static final int MAX_CATCH_UP = 5;
+	
+	private final ITickHandler handler;
+	
+	private final long tickTime;
+	
+	private final int rate;
+	
+	private final String name;
+	
+	private Thread thread;
+	
+	private volatile boolean running;
+	
+	private int tick;
+	
+	public TickLoop(int rate, ITickHandler handler) {
+		this(rate, handler, "Server tick");
+	}
+	
+	public TickLoop(int rate, ITickHandler handler, String name) {
+		if(rate <= 0)
+			throw new IllegalArgumentException("Tick rate must be positive: " + rate);
+		
+		this.rate = rate;
+		this.handler = handler;
+		this.name = name;
+		
+		tickTime = NANOS_PER_SECOND / rate;
+	}
+	
+	public void start() {
+		if(running)
+			return;
+		
+		running = true;
+		
+		thread = new Thread(this, name);
+		thread.start();
+	}
+	
+	public void stop() {
+		if(!running)
+			return;
+		
+		running = false;
+		thread.interrupt();
+	}
+	
+	@Override
+	public void run() {
+		System.out.println(name + " ticking at " + rate + "Hz");
+		
+		long nextTick = System.nanoTime();
+		
+		while(running) {
+			final long now = System.nanoTime();
+			
+			if(now < nextTick) {
+				try {
+					final long wait = nextTick - now;
+					Thread.sleep(wait / NANOS_PER_MILLI, (int)(wait % NANOS_PER_MILLI));
+				} catch(InterruptedException e) {}
+				
+				continue;
+			}
+			
+			try {
+				handler.onTick(tick++);
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+			}
+			
+			nextTick += tickTime;
+			
+			if(now - nextTick > tickTime * MAX_CATCH_UP) {
+				nextTick = now;
+			}
+		}
+	}
+	
+	public int getRate() {
+		return rate;
+	}
+	
+	public int getTick() {
+		return tick;
+	}
+	
+	public interface ITickHandler {
+		void onTick(int tick);
+	}
+}
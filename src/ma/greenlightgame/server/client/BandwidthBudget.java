@@ -0,0 +1,50 @@
+package ma.greenlightgame.server.client;
+
+// Bytes a client may still be sent. Refills at the configured rate and holds up to a tenth of a
+// second worth, everything that goes out is taken off, so it can go below zero after a burst.
+public class BandwidthBudget {
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	
+	private static final int BURST_DIVISOR = 10;
+	
+	private final long rate;
+	private final long burst;
+	
+	private long available;
+	private long lastRefill;
+	
+	// Rate in bytes per second, the burst is at least one packet
+	public BandwidthBudget(int rate, int minBurst, long now) {
+		this.rate = Math.max(1, rate);
+		
+		burst = Math.max(minBurst, this.rate / BURST_DIVISOR);
+		available = burst;
+		lastRefill = now;
+	}
+	
+	// Called by the room and the network threads
+	public synchronized void consume(int bytes) {
+		available -= bytes;
+	}
+	
+	// Adds what came in since the last call, returns the bytes that can be sent now
+	public synchronized long refill(long now) {
+		final long added = (now - lastRefill) * rate / NANOS_PER_SECOND;
+		
+		if(available + added >= burst) {
+			available = burst;
+			lastRefill = now;
+		} else if(added > 0) {
+			available += added;
+			
+			// Keep the part of a byte that didn't make it
+			lastRefill += added * NANOS_PER_SECOND / rate;
+		}
+		
+		return available;
+	}
+	
+	public long getRate() {
+		return rate;
+	}
+}
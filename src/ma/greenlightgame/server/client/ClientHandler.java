@@ -4,46 +4,47 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
-import ma.greenlightgame.common.network.NetworkData.NetworkMessage;
+import ma.greenlightgame.common.network.NetworkData;
 import ma.greenlightgame.common.utils.Coord;
-import ma.greenlightgame.server.Server;
 
 public class ClientHandler {
 	private ServerClientData[] clients;
 	
+	private int[] freeIds;
+	private int numFreeIds;
+	
 	private int numClients;
 	
 	public ClientHandler() {
-		clients = new ServerClientData[4];
+		clients = new ServerClientData[NetworkData.MAX_CLIENTS];
+		freeIds = new int[clients.length];
 		
-		numClients = 0;
+		reset();
 	}
 	
 	public int getFreeClientID() {
-		final int l = clients.length;
-		
-		if(l == 0)
+		if(numFreeIds == 0)
 			return -1;
 		
-		for(int id = 0; id < l; id++) {
-			for(int p = 0; p < l; p++) {
-				if(clients[p] != null)
-					if(id == clients[p].getID()) {
-						break;
-					}
-				
-				if(p == l - 1)
-					return id;
-			}
-		}
-		
-		return -1;
+		return freeIds[numFreeIds - 1];
 	}
 	
 	public void destroy() {
 		for(int i = 0; i < clients.length; i++) {
 			clients[i] = null;
 		}
+		
+		reset();
+	}
+	
+	private void reset() {
+		// Hand out the lowest IDs first
+		for(int i = 0; i < clients.length; i++) {
+			freeIds[i] = clients.length - 1 - i;
+		}
+		
+		numFreeIds = clients.length;
+		numClients = 0;
 	}
 	
 	public void generatePlayerPositions(int levelId) {
@@ -68,34 +69,43 @@ public class ClientHandler {
 				client.setVelocityX(0);
 				client.setVelocityY(0);
 				client.setRotation(0);
-				
-				for(ServerClientData client2 : clients)
-					if(client2 != null) {
-						Server.sendUDP(client2.getAddress(), client2.getPort(),
-								NetworkMessage.PLAYER_INFO, client.getID(), client.getX(),
-								client.getY(), client.getVelocityX(), client.getVelocityY(),
-								client.getRotation());
-					}
 			}
 		}
 	}
 	
-	public void addClient(int id, ServerClientData client) {
+	// The client has to use the ID returned by getFreeClientID
+	public void addClient(ServerClientData client) {
+		final int id = client.getID();
+		
+		if(numFreeIds == 0 || freeIds[numFreeIds - 1] != id)
+			throw new IllegalStateException("Client ID " + id + " is not free");
+		
+		numFreeIds--;
+		
 		clients[id] = client;
 		numClients++;
 	}
 	
+	public void removeClient(ServerClientData client) {
+		final int id = client.getID();
+		
+		if(clients[id] != client)
+			return;
+		
+		clients[id] = null;
+		freeIds[numFreeIds++] = id;
+		numClients--;
+	}
+	
 	public ServerClientData[] getClients() {
 		return clients;
 	}
 	
 	public ServerClientData getClient(int id) {
-		for(ServerClientData client : clients)
-			if(client != null)
-				if(client.getID() == id)
-					return client;
+		if(id < 0 || id >= clients.length)
+			return null;
 		
-		return null;
+		return clients[id];
 	}
 	
 	public int getNumClients() {
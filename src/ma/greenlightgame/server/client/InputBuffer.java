@@ -0,0 +1,76 @@
+package ma.greenlightgame.server.client;
+
+// Input commands of a client that arrived but haven't been processed yet
+public class InputBuffer {
+	private final int[] sequences;
+	private final int[] buttons;
+	private final float[] aims;
+	
+	// Sequence of the newest command that arrived, commands are numbered from 1
+	private int newest;
+	
+	// Sequence of the last command that was processed
+	private int processed;
+	
+	public InputBuffer(int size) {
+		sequences = new int[size];
+		buttons = new int[size];
+		aims = new float[size];
+	}
+	
+	// Commands arrive more than once, only new ones are stored
+	public void put(int sequence, int buttons, float aim) {
+		if(sequence - processed <= 0 || contains(sequence))
+			return;
+		
+		final int slot = slot(sequence);
+		
+		sequences[slot] = sequence;
+		this.buttons[slot] = buttons;
+		aims[slot] = aim;
+		
+		if(sequence - newest > 0) {
+			newest = sequence;
+		}
+	}
+	
+	// Returns the sequence of the next command to process, or 0 if there is none. Commands
+	// that got lost, or fell out of the buffer, are skipped.
+	public int next() {
+		if(newest - processed <= 0)
+			return 0;
+		
+		if(newest - processed > sequences.length) {
+			processed = newest - sequences.length;
+		}
+		
+		while(newest - processed > 0) {
+			processed++;
+			
+			if(contains(processed))
+				return processed;
+		}
+		
+		return 0;
+	}
+	
+	public boolean contains(int sequence) {
+		return sequence != 0 && sequences[slot(sequence)] == sequence;
+	}
+	
+	public int getButtons(int sequence) {
+		return buttons[slot(sequence)];
+	}
+	
+	public float getAim(int sequence) {
+		return aims[slot(sequence)];
+	}
+	
+	public int getProcessed() {
+		return processed;
+	}
+	
+	private int slot(int sequence) {
+		return (sequence & Integer.MAX_VALUE) % sequences.length;
+	}
+}
@@ -1,26 +1,234 @@
 package ma.greenlightgame.server.client;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 
 import ma.greenlightgame.common.client.ClientData;
+import ma.greenlightgame.common.config.Config;
+import ma.greenlightgame.common.network.Connection;
+import ma.greenlightgame.common.network.Connection.IMessageHandler;
+import ma.greenlightgame.common.network.Connection.IPacketSender;
+import ma.greenlightgame.common.network.NetworkData;
+import ma.greenlightgame.common.network.SnapshotBuffer;
+import ma.greenlightgame.server.metrics.ServerMetrics;
+import ma.greenlightgame.server.network.UDPServer;
 
-public class ServerClientData extends ClientData {
-	private final InetAddress address;
+public class ServerClientData extends ClientData implements IPacketSender {
+	private static final int INPUT_HISTORY = 64;
 	
-	private final int port;
+	// Written by the network thread when the session moves
+	private volatile InetSocketAddress socketAddress;
 	
-	public ServerClientData(int id, InetAddress address, int port) {
+	private final UDPServer server;
+	
+	private final int roomId;
+	private final long token;
+	
+	private final Connection connection;
+	
+	private final SnapshotBuffer snapshots;
+	
+	private int ackedSnapshot;
+	
+	// Tick of the last snapshot that was sent
+	private int lastSnapshot;
+	
+	private final BandwidthBudget bandwidth;
+	
+	// Sequence of the newest input the player state is based on
+	private int lastInput;
+	
+	private final InputBuffer inputs;
+	
+	// Buttons of the last processed input command
+	private int buttons;
+	
+	private volatile long lastReceived;
+	
+	// When the newest ping arrived
+	private volatile long pingReceived;
+	
+	// In microseconds, as the client reported them with its last ping
+	private volatile int roundTripTime;
+	private volatile int jitter;
+	
+	// Takes the frames of received packets, set by the room
+	private IMessageHandler receiver;
+	
+	public ServerClientData(int id, int roomId, long token, InetAddress address, int port,
+			int maxClients, UDPServer server) {
 		super(id);
 		
-		this.address = address;
-		this.port = port;
+		this.roomId = roomId;
+		this.token = token;
+		this.server = server;
+		
+		socketAddress = new InetSocketAddress(address, port);
+		lastReceived = System.nanoTime();
+		snapshots = new SnapshotBuffer(NetworkData.SNAPSHOT_HISTORY, maxClients);
+		connection = new Connection(this);
+		inputs = new InputBuffer(INPUT_HISTORY);
+		
+		bandwidth = new BandwidthBudget(Config.getInt(Config.CLIENT_BANDWIDTH),
+				NetworkData.MAX_PACKET_SIZE + NetworkData.UDP_OVERHEAD, lastReceived);
+		
+		ackedSnapshot = -1;
+		lastSnapshot = -1;
+	}
+	
+	// Queues the message until the next flush
+	public void send(ByteBuffer message) {
+		ServerMetrics.get().onMessageOut(message.get(message.position()) & 0xFF,
+				message.remaining());
+		connection.send(message);
+	}
+	
+	// Queues the message until the next flush, it is resent until the client acks it. Returns
+	// false if the client is so far behind that the message had to be dropped.
+	public boolean sendReliable(ByteBuffer message) {
+		if(!connection.sendReliable(message)) {
+			ServerMetrics.get().onDroppedMessage();
+			return false;
+		}
+		
+		ServerMetrics.get().onMessageOut(message.get(message.position()) & 0xFF,
+				message.remaining());
+		
+		return true;
+	}
+	
+	public void flush(long now) {
+		connection.flush(now);
+	}
+	
+	@Override
+	public void sendPacket(ByteBuffer packet) {
+		ServerMetrics.get().onPacketOut(packet.remaining());
+		bandwidth.consume(packet.remaining() + NetworkData.UDP_OVERHEAD);
+		
+		try {
+			server.send(socketAddress, packet);
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	public void setAckedSnapshot(int tick) {
+		if(ackedSnapshot < 0 || tick - ackedSnapshot > 0) {
+			ackedSnapshot = tick;
+		}
+	}
+	
+	// Returns false if the input is older than the state we already have
+	public boolean setLastInput(int input) {
+		if(input - lastInput <= 0)
+			return false;
+		
+		lastInput = input;
+		
+		return true;
+	}
+	
+	public Connection getConnection() {
+		return connection;
+	}
+	
+	public void setSocketAddress(InetAddress address, int port) {
+		socketAddress = new InetSocketAddress(address, port);
+	}
+	
+	public void setReceiver(IMessageHandler receiver) {
+		this.receiver = receiver;
+	}
+	
+	public IMessageHandler getReceiver() {
+		return receiver;
+	}
+	
+	public void setLastReceived(long time) {
+		lastReceived = time;
+	}
+	
+	public long getLastReceived() {
+		return lastReceived;
+	}
+	
+	public void setPingReceived(long time) {
+		pingReceived = time;
+	}
+	
+	public long getPingReceived() {
+		return pingReceived;
+	}
+	
+	public void setLatency(int roundTripTime, int jitter) {
+		this.roundTripTime = roundTripTime;
+		this.jitter = jitter;
+	}
+	
+	public int getRoundTripTime() {
+		return roundTripTime;
+	}
+	
+	public int getJitter() {
+		return jitter;
+	}
+	
+	public int getRoomID() {
+		return roomId;
+	}
+	
+	public long getToken() {
+		return token;
+	}
+	
+	public SnapshotBuffer getSnapshots() {
+		return snapshots;
+	}
+	
+	public int getAckedSnapshot() {
+		return ackedSnapshot;
+	}
+	
+	public void setLastSnapshot(int tick) {
+		lastSnapshot = tick;
+	}
+	
+	public int getLastSnapshot() {
+		return lastSnapshot;
+	}
+	
+	public BandwidthBudget getBandwidth() {
+		return bandwidth;
+	}
+	
+	public void setButtons(int buttons) {
+		this.buttons = buttons;
+	}
+	
+	public int getLastInput() {
+		return lastInput;
+	}
+	
+	public InputBuffer getInputs() {
+		return inputs;
+	}
+	
+	public int getButtons() {
+		return buttons;
+	}
+	
+	public InetSocketAddress getSocketAddress() {
+		return socketAddress;
 	}
 	
 	public InetAddress getAddress() {
-		return address;
+		return socketAddress.getAddress();
 	}
 	
 	public int getPort() {
-		return port;
+		return socketAddress.getPort();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+package ma.greenlightgame.server.client;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+// Open addressing hash table of clients by address and port, lookups don't allocate or lock.
+// Changes are made to a copy that replaces the table, so the network threads always see a whole
+// one. Sessions change rarely, changes have to be synchronized by the caller.
+public class SessionTable {
+	// Every entry keeps the address it was put under, a client that moves gets a new entry
+	private volatile Entry[] table;
+	
+	private final int mask;
+	
+	public SessionTable(int capacity) {
+		int size = 1;
+		
+		// Keep the load factor at or below a half
+		while(size < capacity * 2) {
+			size <<= 1;
+		}
+		
+		table = new Entry[size];
+		mask = size - 1;
+	}
+	
+	public ServerClientData get(InetAddress address, int port) {
+		final Entry[] table = this.table;
+		
+		for(int i = index(address, port);; i = (i + 1) & mask) {
+			final Entry entry = table[i];
+			
+			if(entry == null)
+				return null;
+			
+			if(entry.address.getPort() == port && entry.address.getAddress().equals(address))
+				return entry.client;
+		}
+	}
+	
+	public void put(ServerClientData client) {
+		final Entry[] copy = table.clone();
+		
+		put(copy, new Entry(client.getSocketAddress(), client));
+		table = copy;
+	}
+	
+	public void remove(ServerClientData client) {
+		final Entry[] copy = table.clone();
+		
+		remove(copy, client);
+		table = copy;
+	}
+	
+	// Lookups find the client under the old address until the new table is published, and under
+	// the new one after. The client itself only moves once it can be found there.
+	public void move(ServerClientData client, InetAddress address, int port) {
+		final Entry[] copy = table.clone();
+		
+		remove(copy, client);
+		put(copy, new Entry(new InetSocketAddress(address, port), client));
+		
+		table = copy;
+		
+		client.setSocketAddress(address, port);
+	}
+	
+	public void clear() {
+		table = new Entry[table.length];
+	}
+	
+	private void put(Entry[] table, Entry entry) {
+		int i = index(entry.address.getAddress(), entry.address.getPort());
+		
+		while(table[i] != null) {
+			if(table[i].client == entry.client)
+				return;
+			
+			i = (i + 1) & mask;
+		}
+		
+		table[i] = entry;
+	}
+	
+	// Clients are only ever in the table under their current address
+	private void remove(Entry[] table, ServerClientData client) {
+		int i = index(client.getAddress(), client.getPort());
+		
+		while(table[i] != null && table[i].client != client) {
+			i = (i + 1) & mask;
+		}
+		
+		if(table[i] == null)
+			return;
+		
+		table[i] = null;
+		
+		// Move entries of the same probe run back so lookups don't stop at the hole
+		for(int j = (i + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+			final Entry moved = table[j];
+			final int home = index(moved.address.getAddress(), moved.address.getPort());
+			
+			if(((j - home) & mask) >= ((j - i) & mask)) {
+				table[i] = moved;
+				table[j] = null;
+				i = j;
+			}
+		}
+	}
+	
+	// InetAddress hashes the raw address, it never resolves the host name
+	private int index(InetAddress address, int port) {
+		int hash = address.hashCode() * 31 + port;
+		hash ^= hash >>> 16;
+		
+		return (hash * 0x9E3779B9) & mask;
+	}
+	
+	private static class Entry {
+		private final InetSocketAddress address;
+		private final ServerClientData client;
+		
+		public Entry(InetSocketAddress address, ServerClientData client) {
+			this.address = address;
+			this.client = client;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package ma.greenlightgame.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock free log-linear histogram, values are bucketed with a relative error of about 3%
+public class Histogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	
+	// Values below this get a bucket of their own
+	private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+	
+	private static final int MAX_EXPONENT = 40;
+	
+	private static final int BUCKETS = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts;
+	
+	public Histogram() {
+		counts = new AtomicLongArray(BUCKETS);
+	}
+	
+	public void record(long value) {
+		counts.incrementAndGet(getBucket(value));
+	}
+	
+	// Copies the bucket counts, pass the result to getPercentile
+	public void snapshot(long[] target) {
+		for(int i = 0; i < BUCKETS; i++) {
+			target[i] = counts.get(i);
+		}
+	}
+	
+	public static long[] createSnapshot() {
+		return new long[BUCKETS];
+	}
+	
+	public static long getCount(long[] snapshot) {
+		long count = 0;
+		
+		for(long c : snapshot) {
+			count += c;
+		}
+		
+		return count;
+	}
+	
+	// Returns the upper bound of the bucket holding the percentile, 0 when empty
+	public static long getPercentile(long[] snapshot, double percentile) {
+		final long count = getCount(snapshot);
+		
+		if(count == 0)
+			return 0;
+		
+		final long rank = Math.max(1, (long)Math.ceil(count * percentile / 100.0));
+		
+		long seen = 0;
+		
+		for(int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			
+			if(seen >= rank)
+				return getUpperBound(i);
+		}
+		
+		return getUpperBound(snapshot.length - 1);
+	}
+	
+	public static long getMax(long[] snapshot) {
+		for(int i = snapshot.length - 1; i >= 0; i--) {
+			if(snapshot[i] != 0)
+				return getUpperBound(i);
+		}
+		
+		return 0;
+	}
+	
+	private static int getBucket(long value) {
+		if(value < LINEAR_LIMIT)
+			return value < 0 ? 0 : (int)value;
+		
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		
+		if(exponent >= MAX_EXPONENT)
+			return BUCKETS - 1;
+		
+		final int shift = exponent - SUB_BUCKET_BITS;
+		
+		return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int)(value >> shift) - SUB_BUCKETS;
+	}
+	
+	private static long getUpperBound(int bucket) {
+		if(bucket < LINEAR_LIMIT)
+			return bucket;
+		
+		final int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+		final int sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+		
+		return ((long)(sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,221 @@
+package ma.greenlightgame.server.metrics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+// Updates the interval statistics and optionally appends them to a CSV file that is rolled
+// over once it gets too large
+public class MetricsReporter implements Runnable {
+	private static final long MAX_FILE_SIZE = 10 * 1024 * 1024;
+	
+	private final ServerMetrics metrics;
+	
+	private final long interval;
+	
+	private final File file;
+	
+	private final long[] ticks;
+	private final long[] lastTicks;
+	private final long[] intervalTicks;
+	
+	private final long[] roundTrips;
+	private final long[] lastRoundTrips;
+	private final long[] intervalRoundTrips;
+	
+	private final long[] jitters;
+	private final long[] lastJitters;
+	private final long[] intervalJitters;
+	
+	private Thread thread;
+	
+	private volatile boolean running;
+	
+	private PrintWriter writer;
+	
+	private long lastPacketsIn;
+	private long lastPacketsOut;
+	private long lastBytesIn;
+	private long lastBytesOut;
+	
+	private long[] lastMessagesIn;
+	private long[] lastMessagesOut;
+	
+	// An empty path only updates the JMX statistics
+	public MetricsReporter(ServerMetrics metrics, int interval, String path) {
+		if(interval <= 0)
+			throw new IllegalArgumentException("Interval must be positive: " + interval);
+		
+		this.metrics = metrics;
+		this.interval = interval;
+		
+		file = path == null || path.isEmpty() ? null : new File(path);
+		
+		ticks = Histogram.createSnapshot();
+		lastTicks = Histogram.createSnapshot();
+		intervalTicks = Histogram.createSnapshot();
+		
+		roundTrips = Histogram.createSnapshot();
+		lastRoundTrips = Histogram.createSnapshot();
+		intervalRoundTrips = Histogram.createSnapshot();
+		
+		jitters = Histogram.createSnapshot();
+		lastJitters = Histogram.createSnapshot();
+		intervalJitters = Histogram.createSnapshot();
+		
+		lastMessagesIn = metrics.getMessagesIn();
+		lastMessagesOut = metrics.getMessagesOut();
+	}
+	
+	public void start() {
+		if(running)
+			return;
+		
+		running = true;
+		
+		thread = new Thread(this, "Server metrics");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public void stop() {
+		if(!running)
+			return;
+		
+		running = false;
+		thread.interrupt();
+	}
+	
+	@Override
+	public void run() {
+		while(running) {
+			try {
+				Thread.sleep(interval);
+			} catch(InterruptedException e) {}
+			
+			report();
+		}
+		
+		if(writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+	
+	private void report() {
+		getInterval(metrics.getTickTimes(), ticks, lastTicks, intervalTicks);
+		getInterval(metrics.getRoundTripTimes(), roundTrips, lastRoundTrips, intervalRoundTrips);
+		getInterval(metrics.getJitters(), jitters, lastJitters, intervalJitters);
+		
+		final long p50 = Histogram.getPercentile(intervalTicks, 50);
+		final long p99 = Histogram.getPercentile(intervalTicks, 99);
+		final long max = Histogram.getMax(intervalTicks);
+		
+		final long roundTripP50 = Histogram.getPercentile(intervalRoundTrips, 50);
+		final long roundTripP99 = Histogram.getPercentile(intervalRoundTrips, 99);
+		final long jitterP50 = Histogram.getPercentile(intervalJitters, 50);
+		final long jitterP99 = Histogram.getPercentile(intervalJitters, 99);
+		
+		metrics.setTickPercentiles(p50, p99, max);
+		metrics.setLatencyPercentiles(roundTripP50, roundTripP99, jitterP50, jitterP99);
+		
+		if(file == null)
+			return;
+		
+		final long packetsIn = metrics.getPacketsIn();
+		final long packetsOut = metrics.getPacketsOut();
+		final long bytesIn = metrics.getBytesIn();
+		final long bytesOut = metrics.getBytesOut();
+		final long[] messagesIn = metrics.getMessagesIn();
+		final long[] messagesOut = metrics.getMessagesOut();
+		
+		final StringBuilder line = new StringBuilder();
+		line.append(System.currentTimeMillis()).append(',').append(metrics.getClients())
+				.append(',').append(packetsIn - lastPacketsIn).append(',')
+				.append(packetsOut - lastPacketsOut).append(',').append(bytesIn - lastBytesIn)
+				.append(',').append(bytesOut - lastBytesOut).append(',')
+				.append(metrics.getDecodeErrors()).append(',')
+				.append(metrics.getUnsupportedTypes()).append(',')
+				.append(metrics.getRejectedJoins()).append(',')
+				.append(metrics.getDroppedMessages()).append(',')
+				.append(metrics.getDeferredUpdates()).append(',')
+				.append(metrics.getClampedUpdates()).append(',')
+				.append(Histogram.getCount(intervalTicks)).append(',').append(p50).append(',')
+				.append(p99).append(',').append(max).append(',').append(roundTripP50)
+				.append(',').append(roundTripP99).append(',').append(jitterP50).append(',')
+				.append(jitterP99);
+		
+		for(int i = 0; i < messagesIn.length; i++) {
+			line.append(',').append(messagesIn[i] - lastMessagesIn[i]).append(',')
+					.append(messagesOut[i] - lastMessagesOut[i]);
+		}
+		
+		lastPacketsIn = packetsIn;
+		lastPacketsOut = packetsOut;
+		lastBytesIn = bytesIn;
+		lastBytesOut = bytesOut;
+		lastMessagesIn = messagesIn;
+		lastMessagesOut = messagesOut;
+		
+		write(line.toString());
+	}
+	
+	// Leaves what was recorded since the last call in interval
+	private static void getInterval(Histogram histogram, long[] current, long[] last,
+			long[] interval) {
+		histogram.snapshot(current);
+		
+		for(int i = 0; i < current.length; i++) {
+			interval[i] = current[i] - last[i];
+			last[i] = current[i];
+		}
+	}
+	
+	private void write(String line) {
+		try {
+			if(writer != null && file.length() >= MAX_FILE_SIZE) {
+				writer.close();
+				writer = null;
+				
+				final File rolled = new File(file.getPath() + ".1");
+				
+				if(rolled.exists() && !rolled.delete()) {
+					System.err.println("Unable to delete " + rolled);
+				}
+				
+				if(!file.renameTo(rolled)) {
+					System.err.println("Unable to roll over " + file);
+				}
+			}
+			
+			if(writer == null) {
+				final boolean header = !file.exists() || file.length() == 0;
+				
+				writer = new PrintWriter(new FileWriter(file, true));
+				
+				if(header) {
+					writer.println(getHeader());
+				}
+			}
+			
+			writer.println(line);
+			writer.flush();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private String getHeader() {
+		final StringBuilder header = new StringBuilder("time,clients,packetsIn,packetsOut,"
+				+ "bytesIn,bytesOut,decodeErrors,unsupportedTypes,rejectedJoins,droppedMessages,"
+				+ "deferredUpdates,clampedUpdates,ticks,tickP50Micros,tickP99Micros,tickMaxMicros,"
+				+ "roundTripP50Micros,roundTripP99Micros,jitterP50Micros,jitterP99Micros");
+		
+		for(String type : metrics.getMessageTypes()) {
+			header.append(',').append(type).append("_IN,").append(type).append("_OUT");
+		}
+		
+		return header.toString();
+	}
+}
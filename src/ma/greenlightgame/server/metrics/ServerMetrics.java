@@ -0,0 +1,367 @@
+package ma.greenlightgame.server.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import ma.greenlightgame.common.network.NetworkCodec;
+import ma.greenlightgame.common.network.NetworkData.NetworkMessage;
+
+// Counters are atomics so recording never locks or allocates
+public class ServerMetrics implements ServerMetricsMBean {
+	public static final String OBJECT_NAME = "ma.greenlightgame:type=ServerMetrics";
+	
+	private static final long NANOS_PER_MICRO = 1000L;
+	
+	private static final ServerMetrics instance = new ServerMetrics();
+	
+	private final String[] messageTypes;
+	
+	private final AtomicLongArray messagesIn;
+	private final AtomicLongArray messagesOut;
+	private final AtomicLongArray messageBytesIn;
+	private final AtomicLongArray messageBytesOut;
+	
+	private final AtomicLong packetsIn;
+	private final AtomicLong packetsOut;
+	private final AtomicLong bytesIn;
+	private final AtomicLong bytesOut;
+	
+	private final AtomicLong decodeErrors;
+	private final AtomicLong unsupportedTypes;
+	private final AtomicLong rejectedJoins;
+	private final AtomicLong droppedMessages;
+	private final AtomicLong deferredUpdates;
+	private final AtomicLong clampedUpdates;
+	
+	private final AtomicInteger clients;
+	
+	private final Histogram tickTimes;
+	
+	// In microseconds, as the players measured them
+	private final Histogram roundTripTimes;
+	private final Histogram jitters;
+	
+	// Tick percentiles of the last interval, updated by the reporter
+	private volatile long tickP50;
+	private volatile long tickP99;
+	private volatile long tickMax;
+	
+	// Latency percentiles of the last interval, updated by the reporter
+	private volatile long roundTripP50;
+	private volatile long roundTripP99;
+	private volatile long jitterP50;
+	private volatile long jitterP99;
+	
+	private ServerMetrics() {
+		final int types = NetworkCodec.getNumTypes();
+		
+		messageTypes = new String[types];
+		messagesIn = new AtomicLongArray(types);
+		messagesOut = new AtomicLongArray(types);
+		messageBytesIn = new AtomicLongArray(types);
+		messageBytesOut = new AtomicLongArray(types);
+		
+		packetsIn = new AtomicLong();
+		packetsOut = new AtomicLong();
+		bytesIn = new AtomicLong();
+		bytesOut = new AtomicLong();
+		
+		decodeErrors = new AtomicLong();
+		unsupportedTypes = new AtomicLong();
+		rejectedJoins = new AtomicLong();
+		droppedMessages = new AtomicLong();
+		deferredUpdates = new AtomicLong();
+		clampedUpdates = new AtomicLong();
+		
+		clients = new AtomicInteger();
+		
+		tickTimes = new Histogram();
+		roundTripTimes = new Histogram();
+		jitters = new Histogram();
+		
+		// Name the types after their constants
+		for(Field field : NetworkMessage.class.getFields()) {
+			try {
+				if(Modifier.isStatic(field.getModifiers()) && field.getType() == int.class) {
+					final int type = field.getInt(null);
+					
+					if(type >= 0 && type < types) {
+						messageTypes[type] = field.getName();
+					}
+				}
+			} catch(IllegalAccessException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		for(int i = 0; i < types; i++) {
+			if(messageTypes[i] == null) {
+				messageTypes[i] = "TYPE_" + i;
+			}
+		}
+	}
+	
+	public void onPacketIn(int bytes) {
+		packetsIn.incrementAndGet();
+		bytesIn.addAndGet(bytes);
+	}
+	
+	public void onPacketOut(int bytes) {
+		packetsOut.incrementAndGet();
+		bytesOut.addAndGet(bytes);
+	}
+	
+	public void onMessageIn(int type, int bytes) {
+		if(type < 0 || type >= messageTypes.length)
+			return;
+		
+		messagesIn.incrementAndGet(type);
+		messageBytesIn.addAndGet(type, bytes);
+	}
+	
+	public void onMessageOut(int type, int bytes) {
+		if(type < 0 || type >= messageTypes.length)
+			return;
+		
+		messagesOut.incrementAndGet(type);
+		messageBytesOut.addAndGet(type, bytes);
+	}
+	
+	public void onDecodeError() {
+		decodeErrors.incrementAndGet();
+	}
+	
+	public void onUnsupportedType() {
+		unsupportedTypes.incrementAndGet();
+	}
+	
+	public void onRejectedJoin() {
+		rejectedJoins.incrementAndGet();
+	}
+	
+	public void onDroppedMessage() {
+		droppedMessages.incrementAndGet();
+	}
+	
+	public void onDeferredUpdate() {
+		deferredUpdates.incrementAndGet();
+	}
+	
+	public void onClampedUpdate() {
+		clampedUpdates.incrementAndGet();
+	}
+	
+	public void onClientJoined() {
+		clients.incrementAndGet();
+	}
+	
+	public void onClientLeft() {
+		clients.decrementAndGet();
+	}
+	
+	public void onPlayerLatency(int roundTripTime, int jitter) {
+		roundTripTimes.record(roundTripTime);
+		jitters.record(jitter);
+	}
+	
+	public void onTick(long nanos) {
+		tickTimes.record(nanos / NANOS_PER_MICRO);
+	}
+	
+	Histogram getTickTimes() {
+		return tickTimes;
+	}
+	
+	void setTickPercentiles(long p50, long p99, long max) {
+		tickP50 = p50;
+		tickP99 = p99;
+		tickMax = max;
+	}
+	
+	Histogram getRoundTripTimes() {
+		return roundTripTimes;
+	}
+	
+	Histogram getJitters() {
+		return jitters;
+	}
+	
+	void setLatencyPercentiles(long roundTripP50, long roundTripP99, long jitterP50,
+			long jitterP99) {
+		this.roundTripP50 = roundTripP50;
+		this.roundTripP99 = roundTripP99;
+		this.jitterP50 = jitterP50;
+		this.jitterP99 = jitterP99;
+	}
+	
+	public void register() {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(OBJECT_NAME);
+			
+			if(!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch(JMException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	public void unregister() {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(OBJECT_NAME);
+			
+			if(server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch(JMException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	@Override
+	public long getPacketsIn() {
+		return packetsIn.get();
+	}
+	
+	@Override
+	public long getPacketsOut() {
+		return packetsOut.get();
+	}
+	
+	@Override
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+	
+	@Override
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+	
+	@Override
+	public long getDecodeErrors() {
+		return decodeErrors.get();
+	}
+	
+	@Override
+	public long getUnsupportedTypes() {
+		return unsupportedTypes.get();
+	}
+	
+	@Override
+	public long getRejectedJoins() {
+		return rejectedJoins.get();
+	}
+	
+	@Override
+	public long getDroppedMessages() {
+		return droppedMessages.get();
+	}
+	
+	@Override
+	public long getDeferredUpdates() {
+		return deferredUpdates.get();
+	}
+	
+	@Override
+	public long getClampedUpdates() {
+		return clampedUpdates.get();
+	}
+	
+	@Override
+	public int getClients() {
+		return clients.get();
+	}
+	
+	@Override
+	public long getTicks() {
+		final long[] snapshot = Histogram.createSnapshot();
+		tickTimes.snapshot(snapshot);
+		
+		return Histogram.getCount(snapshot);
+	}
+	
+	@Override
+	public long getTickP50Micros() {
+		return tickP50;
+	}
+	
+	@Override
+	public long getTickP99Micros() {
+		return tickP99;
+	}
+	
+	@Override
+	public long getTickMaxMicros() {
+		return tickMax;
+	}
+	
+	@Override
+	public long getRoundTripP50Micros() {
+		return roundTripP50;
+	}
+	
+	@Override
+	public long getRoundTripP99Micros() {
+		return roundTripP99;
+	}
+	
+	@Override
+	public long getJitterP50Micros() {
+		return jitterP50;
+	}
+	
+	@Override
+	public long getJitterP99Micros() {
+		return jitterP99;
+	}
+	
+	@Override
+	public String[] getMessageTypes() {
+		return messageTypes.clone();
+	}
+	
+	@Override
+	public long[] getMessagesIn() {
+		return toArray(messagesIn);
+	}
+	
+	@Override
+	public long[] getMessagesOut() {
+		return toArray(messagesOut);
+	}
+	
+	@Override
+	public long[] getMessageBytesIn() {
+		return toArray(messageBytesIn);
+	}
+	
+	@Override
+	public long[] getMessageBytesOut() {
+		return toArray(messageBytesOut);
+	}
+	
+	private static long[] toArray(AtomicLongArray array) {
+		final long[] result = new long[array.length()];
+		
+		for(int i = 0; i < result.length; i++) {
+			result[i] = array.get(i);
+		}
+		
+		return result;
+	}
+	
+	public static ServerMetrics get() {
+		return instance;
+	}
+}
@@ -0,0 +1,58 @@
+package ma.greenlightgame.server.metrics;
+
+public interface ServerMetricsMBean {
+	long getPacketsIn();
+	
+	long getPacketsOut();
+	
+	long getBytesIn();
+	
+	long getBytesOut();
+	
+	long getDecodeErrors();
+	
+	long getUnsupportedTypes();
+	
+	long getRejectedJoins();
+	
+	// Messages that didn't fit in the queue of their room, or the reliable queue of a client
+	long getDroppedMessages();
+	
+	// Entity updates held back from a snapshot to stay within the bandwidth of a client
+	long getDeferredUpdates();
+	
+	// Entity updates with a value outside the range of its snapshot quantizer, sent clamped
+	long getClampedUpdates();
+	
+	int getClients();
+	
+	long getTicks();
+	
+	// Tick durations over the last reporting interval
+	long getTickP50Micros();
+	
+	long getTickP99Micros();
+	
+	long getTickMaxMicros();
+	
+	// Round trip time and jitter the players measured to the server over the last interval, the
+	// status command of the dedicated server lists them per player
+	long getRoundTripP50Micros();
+	
+	long getRoundTripP99Micros();
+	
+	long getJitterP50Micros();
+	
+	long getJitterP99Micros();
+	
+	String[] getMessageTypes();
+	
+	// Indexed like getMessageTypes
+	long[] getMessagesIn();
+	
+	long[] getMessagesOut();
+	
+	long[] getMessageBytesIn();
+	
+	long[] getMessageBytesOut();
+}
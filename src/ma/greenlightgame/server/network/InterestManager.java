@@ -0,0 +1,132 @@
+package ma.greenlightgame.server.network;
+
+import java.util.Arrays;
+
+import ma.greenlightgame.server.client.ServerClientData;
+
+public class InterestManager {
+	private final boolean[][] visible;
+	private final boolean[] scratch;
+	
+	// Uniform grid stored as hashed buckets of singly linked entity indices
+	private final int[] buckets;
+	private final int[] next;
+	
+	private final int[] cellX;
+	private final int[] cellY;
+	
+	private final int[] x;
+	private final int[] y;
+	
+	private final boolean[] active;
+	
+	private final long enterRadiusSquared;
+	private final long exitRadiusSquared;
+	
+	private final int cellSize;
+	private final int cellRange;
+	private final int bucketMask;
+	
+	public InterestManager(int capacity, int radius, int hysteresis) {
+		if(radius <= 0)
+			throw new IllegalArgumentException("Interest radius must be positive: " + radius);
+		
+		visible = new boolean[capacity][capacity];
+		scratch = new boolean[capacity];
+		
+		int bucketCount = 1;
+		while(bucketCount < capacity * 2) {
+			bucketCount <<= 1;
+		}
+		
+		buckets = new int[bucketCount];
+		bucketMask = bucketCount - 1;
+		next = new int[capacity];
+		
+		cellX = new int[capacity];
+		cellY = new int[capacity];
+		x = new int[capacity];
+		y = new int[capacity];
+		active = new boolean[capacity];
+		
+		final long exitRadius = radius + Math.max(0, hysteresis);
+		
+		enterRadiusSquared = (long)radius * radius;
+		exitRadiusSquared = exitRadius * exitRadius;
+		
+		cellSize = radius;
+		cellRange = (int)((exitRadius + cellSize - 1) / cellSize);
+	}
+	
+	public void update(ServerClientData[] clients) {
+		Arrays.fill(buckets, -1);
+		
+		for(int i = 0; i < clients.length; i++) {
+			final ServerClientData client = clients[i];
+			
+			active[i] = client != null;
+			
+			if(client == null)
+				continue;
+			
+			x[i] = client.getX();
+			y[i] = client.getY();
+			cellX[i] = floorDiv(x[i], cellSize);
+			cellY[i] = floorDiv(y[i], cellSize);
+			
+			final int bucket = bucket(cellX[i], cellY[i]);
+			next[i] = buckets[bucket];
+			buckets[bucket] = i;
+		}
+		
+		for(int observer = 0; observer < clients.length; observer++) {
+			if(!active[observer]) {
+				Arrays.fill(visible[observer], false);
+				continue;
+			}
+			
+			Arrays.fill(scratch, false);
+			
+			for(int cx = cellX[observer] - cellRange; cx <= cellX[observer] + cellRange; cx++) {
+				for(int cy = cellY[observer] - cellRange; cy <= cellY[observer] + cellRange; cy++) {
+					for(int target = buckets[bucket(cx, cy)]; target >= 0; target = next[target]) {
+						if(cellX[target] != cx || cellY[target] != cy)
+							continue;
+						
+						final long dx = x[target] - x[observer];
+						final long dy = y[target] - y[observer];
+						final long distance = dx * dx + dy * dy;
+						
+						// Entities have to come closer to become visible than they have to move
+						// away to disappear again, so they don't flicker at the edge
+						if(distance <= enterRadiusSquared
+								|| (visible[observer][target] && distance <= exitRadiusSquared)) {
+							scratch[target] = true;
+						}
+					}
+				}
+			}
+			
+			scratch[observer] = true;
+			
+			System.arraycopy(scratch, 0, visible[observer], 0, scratch.length);
+		}
+	}
+	
+	public boolean isVisible(int observer, int target) {
+		return visible[observer][target];
+	}
+	
+	private int bucket(int cx, int cy) {
+		return (cx * 73856093 ^ cy * 19349663) & bucketMask;
+	}
+	
+	private static int floorDiv(int value, int divisor) {
+		final int result = value / divisor;
+		
+		if((value % divisor != 0) && ((value < 0) != (divisor < 0)))
+			return result - 1;
+		
+		return result;
+	}
+}
@@ -0,0 +1,76 @@
+package ma.greenlightgame.server.network;
+
+import java.nio.ByteBuffer;
+
+import ma.greenlightgame.common.network.NetworkCodec;
+import ma.greenlightgame.common.network.Snapshot;
+
+// Encodes the snapshots of a tick. Clients that get the same entities against a baseline with the
+// same entities get the same bytes apart from the baseline tick and their last input, so each
+// distinct snapshot is encoded once and only those fields are rewritten for the other clients.
+public class SnapshotEncoder {
+	private final NetworkCodec codec;
+	
+	// Encoded this tick, with what they were encoded from
+	private final ByteBuffer[] messages;
+	private final Snapshot[] snapshots;
+	private final Snapshot[] baselines;
+	
+	private int count;
+	
+	private int time;
+	
+	public SnapshotEncoder(NetworkCodec codec, int capacity) {
+		this.codec = codec;
+		
+		messages = new ByteBuffer[capacity];
+		snapshots = new Snapshot[capacity];
+		baselines = new Snapshot[capacity];
+		
+		for(int i = 0; i < capacity; i++) {
+			messages[i] = ByteBuffer.allocate(NetworkCodec.getMaxSnapshotSize(capacity));
+		}
+	}
+	
+	// Forgets the snapshots of the previous tick, they may have changed since
+	public void begin(int time) {
+		this.time = time;
+		
+		for(int i = 0; i < count; i++) {
+			snapshots[i] = null;
+			baselines[i] = null;
+		}
+		
+		count = 0;
+	}
+	
+	// The message is shared with other clients, it is only valid until the next call
+	public ByteBuffer encode(Snapshot snapshot, Snapshot baseline, int lastInput) {
+		for(int i = 0; i < count; i++) {
+			if(snapshot.matches(snapshots[i]) && (baseline == null ? baselines[i] == null
+					: baseline.matches(baselines[i]))) {
+				NetworkCodec.setSnapshotClient(messages[i],
+						baseline == null ? -1 : baseline.getSequence(), lastInput);
+				
+				return messages[i];
+			}
+		}
+		
+		final ByteBuffer encoded = codec.encodeSnapshot(snapshot, baseline, lastInput, time);
+		
+		if(count == messages.length)
+			return encoded;
+		
+		final ByteBuffer message = messages[count];
+		
+		message.clear();
+		message.put(encoded);
+		message.flip();
+		
+		snapshots[count] = snapshot;
+		baselines[count] = baseline;
+		count++;
+		
+		return message;
+	}
+}
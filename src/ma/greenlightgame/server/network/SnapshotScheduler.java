@@ -0,0 +1,185 @@
+package ma.greenlightgame.server.network;
+
+import ma.greenlightgame.common.network.Connection;
+import ma.greenlightgame.common.network.NetworkCodec;
+import ma.greenlightgame.common.network.NetworkData;
+import ma.greenlightgame.common.network.Snapshot;
+import ma.greenlightgame.common.network.SnapshotBuffer;
+import ma.greenlightgame.server.client.ServerClientData;
+import ma.greenlightgame.server.metrics.ServerMetrics;
+
+// Fills the snapshot of each client with the entity updates that matter most to it, as far as its
+// bandwidth allows. Every visible entity gains priority each tick it isn't sent, faster when it is
+// close or new to the client, so far away entities still get their turn on a slow link. Entities
+// that are held back keep the state the client was last sent, removals always go out.
+public class SnapshotScheduler {
+	// Priority gained per tick, others lose weight with distance down to the edge of the area
+	// of interest
+	private static final float SELF_PRIORITY = 2;
+	private static final float NEW_PRIORITY = 4;
+	private static final float NEAR_PRIORITY = 1;
+	private static final float FAR_PRIORITY = 0.25f;
+	
+	// Everything around the entities, the last byte is the padding of the bit packing
+	private static final int OVERHEAD = NetworkData.UDP_OVERHEAD + Connection.PACKET_HEADER_SIZE
+			+ Connection.FRAME_HEADER_SIZE + NetworkCodec.SNAPSHOT_SIZE + 1;
+	
+	private final float[][] priorities;
+	
+	// Entities of the snapshot being scheduled, in the state they are in now
+	private final Snapshot candidates;
+	
+	private final int[] costs;
+	private final int[] heldCosts;
+	private final int[] heldIndices;
+	private final int[] order;
+	private final boolean[] scheduled;
+	
+	private final float radius;
+	
+	public SnapshotScheduler(int capacity, int radius) {
+		priorities = new float[capacity][capacity];
+		candidates = new Snapshot(capacity);
+		
+		costs = new int[capacity];
+		heldCosts = new int[capacity];
+		heldIndices = new int[capacity];
+		order = new int[capacity];
+		scheduled = new boolean[capacity];
+		
+		this.radius = Math.max(1, radius);
+	}
+	
+	// Returns the snapshot of the tick for the observer, or null if the budget doesn't even
+	// allow an empty one
+	public Snapshot schedule(ServerClientData observer, ServerClientData[] clients,
+			InterestManager interest, int tick, long available) {
+		if(available < OVERHEAD)
+			return null;
+		
+		final SnapshotBuffer history = observer.getSnapshots();
+		final Snapshot snapshot = history.next(tick);
+		
+		// Fall back to a full snapshot when the acked one is no longer in the history
+		final Snapshot baseline = history.get(observer.getAckedSnapshot());
+		
+		// What the client was last sent, held back entities stay like that
+		Snapshot held = history.get(observer.getLastSnapshot());
+		
+		if(held == null) {
+			held = baseline;
+		}
+		
+		final float[] priority = priorities[observer.getID()];
+		
+		long budget = (available - OVERHEAD) * 8;
+		int count = 0;
+		
+		candidates.clear(tick);
+		
+		for(ServerClientData client : clients) {
+			if(client == null || !interest.isVisible(observer.getID(), client.getID())) {
+				if(client != null) {
+					priority[client.getID()] = 0;
+				}
+				
+				continue;
+			}
+			
+			final int id = client.getID();
+			final boolean known = baseline != null && baseline.indexOf(id) >= 0;
+			
+			priority[id] += getPriority(observer, client, known);
+			
+			if(!candidates.add(id, client.getX(), client.getY(), client.getVelocityX(),
+					client.getVelocityY(), client.getRotation())) {
+				ServerMetrics.get().onClampedUpdate();
+			}
+			
+			costs[count] = NetworkCodec.getEntityBits(candidates, count, baseline);
+			heldIndices[count] = held == null ? -1 : held.indexOf(id);
+			
+			if(heldIndices[count] >= 0) {
+				heldCosts[count] = NetworkCodec.getEntityBits(held, heldIndices[count], baseline);
+			} else {
+				heldCosts[count] = known ? NetworkCodec.REMOVED_BITS : 0;
+			}
+			
+			// Whatever happens to the other entities, held back ones have to fit
+			budget -= heldCosts[count];
+			
+			insert(count, priority);
+			count++;
+		}
+		
+		// Entities that went out of view are removed
+		if(baseline != null) {
+			for(int i = 0; i < baseline.getCount(); i++) {
+				if(candidates.indexOf(baseline.getID(i)) < 0) {
+					budget -= NetworkCodec.REMOVED_BITS;
+				}
+			}
+		}
+		
+		for(int i = 0; i < count; i++) {
+			final int index = order[i];
+			final int extra = costs[index] - heldCosts[index];
+			
+			// Sending the new state is free if holding the old one costs as much
+			scheduled[index] = extra <= 0 || extra <= budget;
+			
+			if(scheduled[index]) {
+				budget -= extra;
+				priority[candidates.getID(index)] = 0;
+			} else {
+				ServerMetrics.get().onDeferredUpdate();
+			}
+		}
+		
+		for(int i = 0; i < count; i++) {
+			if(scheduled[i]) {
+				snapshot.add(candidates, i);
+			} else if(heldIndices[i] >= 0) {
+				snapshot.add(held, heldIndices[i]);
+			}
+		}
+		
+		return snapshot;
+	}
+	
+	// Forgets what the client was owed, and what others were owed of it
+	public void clear(int id) {
+		for(int i = 0; i < priorities.length; i++) {
+			priorities[id][i] = 0;
+			priorities[i][id] = 0;
+		}
+	}
+	
+	private float getPriority(ServerClientData observer, ServerClientData client, boolean known) {
+		if(client == observer)
+			return SELF_PRIORITY;
+		
+		if(!known)
+			return NEW_PRIORITY;
+		
+		final double dx = client.getX() - observer.getX();
+		final double dy = client.getY() - observer.getY();
+		final float distance = (float)Math.min(1, Math.sqrt(dx * dx + dy * dy) / radius);
+		
+		return NEAR_PRIORITY + (FAR_PRIORITY - NEAR_PRIORITY) * distance;
+	}
+	
+	// Keeps the candidates ordered by priority, highest first
+	private void insert(int index, float[] priority) {
+		final float value = priority[candidates.getID(index)];
+		
+		int i = index;
+		
+		while(i > 0 && priority[candidates.getID(order[i - 1])] < value) {
+			order[i] = order[i - 1];
+			i--;
+		}
+		
+		order[i] = index;
+	}
+}
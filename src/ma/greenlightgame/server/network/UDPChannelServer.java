@@ -0,0 +1,267 @@
+package ma.greenlightgame.server.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import ma.greenlightgame.common.config.Config;
+import ma.greenlightgame.common.network.BufferPool;
+import ma.greenlightgame.common.network.NetworkData;
+
+// With more than one socket they all bind the port with SO_REUSEPORT and the kernel spreads the
+// peers over them by hashing their address. A peer always ends up at the same socket, so its
+// packets are handled in order by a single thread.
+public class UDPChannelServer extends UDPServer {
+	private static final int POOL_SIZE = 64;
+	
+	private static final String SO_REUSEPORT = "SO_REUSEPORT";
+	
+	private Receiver[] receivers;
+	
+	private volatile boolean open;
+	
+	public UDPChannelServer(int port, IUDPServerHandler handler) throws IOException {
+		super(port, handler);
+		
+		int sockets = Math.max(1, Config.getInt(Config.SERVER_SOCKETS));
+		SocketOption<Boolean> reusePort = null;
+		
+		if(sockets > 1) {
+			reusePort = getReusePort();
+			
+			if(reusePort == null) {
+				System.err.println(SO_REUSEPORT + " is not supported, using a single socket");
+				sockets = 1;
+			}
+		}
+		
+		receivers = new Receiver[sockets];
+		
+		try {
+			for(int i = 0; i < sockets; i++) {
+				receivers[i] = new Receiver(port, reusePort);
+			}
+		} catch(IOException e) {
+			for(Receiver receiver : receivers) {
+				if(receiver != null) {
+					receiver.close();
+				}
+			}
+			
+			throw e;
+		}
+		
+		open = true;
+		
+		start();
+	}
+	
+	@Override
+	protected void start() {
+		// The first socket is read by the thread of the server
+		super.start();
+		
+		for(int i = 1; i < receivers.length; i++) {
+			receivers[i].thread = new Thread(receivers[i], "UDP receiver " + i);
+			receivers[i].thread.start();
+		}
+		
+		if(receivers.length > 1) {
+			System.out.println("Receiving on " + receivers.length + " sockets");
+		}
+	}
+	
+	@Override
+	public void run() {
+		System.out.println("Server started");
+		
+		receivers[0].run();
+	}
+	
+	@Override
+	protected void sendPacket(InetSocketAddress address, ByteBuffer message) throws IOException {
+		if(!open)
+			return;
+		
+		if(message.remaining() > NetworkData.BUFFER_SIZE) {
+			System.err.println("Dropped a packet of " + message.remaining()
+					+ " bytes, larger than a datagram");
+			return;
+		}
+		
+		// All sockets send from the same port, spread the peers so they don't wait on each other
+		final int index = (address.hashCode() & Integer.MAX_VALUE) % receivers.length;
+		final DatagramChannel channel = receivers[index].channel;
+		final int position = message.position();
+		
+		channel.send(message, address);
+		message.position(position);
+	}
+	
+	@Override
+	public void close() {
+		if(!open)
+			return;
+		
+		open = false;
+		
+		System.out.println("Stopping server...");
+		
+		loopback.close();
+		
+		if(conditioner != null) {
+			conditioner.close();
+		}
+		
+		for(Receiver receiver : receivers) {
+			receiver.close();
+		}
+		
+		thread.interrupt();
+		
+		for(int i = 1; i < receivers.length; i++) {
+			receivers[i].thread.interrupt();
+		}
+		
+		System.out.println("Server stopped");
+	}
+	
+	// StandardSocketOptions.SO_REUSEPORT only exists since Java 9, so it is looked up by name
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> getReusePort() throws IOException {
+		final DatagramChannel channel = DatagramChannel.open();
+		
+		try {
+			for(SocketOption<?> option : channel.supportedOptions()) {
+				if(option.name().equals(SO_REUSEPORT) && option.type() == Boolean.class)
+					return (SocketOption<Boolean>)option;
+			}
+		} finally {
+			channel.close();
+		}
+		
+		return null;
+	}
+	
+	// A socket and what its thread needs to read it
+	private class Receiver implements Runnable {
+		private DatagramChannel channel;
+		
+		private Selector selector;
+		
+		private BufferPool pool;
+		
+		private ByteBuffer[] batch;
+		
+		private InetSocketAddress[] senders;
+		
+		private Thread thread;
+		
+		public Receiver(int port, SocketOption<Boolean> reusePort) throws IOException {
+			pool = new BufferPool(POOL_SIZE, NetworkData.BUFFER_SIZE, true);
+			batch = new ByteBuffer[POOL_SIZE];
+			senders = new InetSocketAddress[POOL_SIZE];
+			
+			channel = DatagramChannel.open();
+			
+			try {
+				channel.setOption(StandardSocketOptions.SO_RCVBUF,
+						Config.getInt(Config.SOCKET_RECEIVE_BUFFER));
+				channel.setOption(StandardSocketOptions.SO_SNDBUF,
+						Config.getInt(Config.SOCKET_SEND_BUFFER));
+				
+				if(reusePort != null) {
+					channel.setOption(reusePort, true);
+				}
+				
+				channel.bind(new InetSocketAddress(port));
+				channel.configureBlocking(false);
+				
+				selector = Selector.open();
+				channel.register(selector, SelectionKey.OP_READ);
+			} catch(IOException e) {
+				close();
+				throw e;
+			}
+		}
+		
+		@Override
+		public void run() {
+			while(channel.isOpen()) {
+				try {
+					// The selected key set is never cleared, adding a key that is already
+					// selected does not allocate. The return value is ignored for the same
+					// reason, the channel is drained until it would block before selecting again.
+					selector.select(NetworkData.SO_TIMEOUT);
+					
+					if(!channel.isOpen())
+						break;
+					
+					while(receive() == POOL_SIZE);
+				} catch(IOException e) {
+					if(channel.isOpen()) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+		
+		private int receive() throws IOException {
+			int count = 0;
+			
+			while(count < POOL_SIZE) {
+				final ByteBuffer buffer = pool.acquire();
+				
+				if(buffer == null)
+					break;
+				
+				// The channel only reuses the sender address while the sender stays the same.
+				// With many peers taking turns every datagram allocates a new InetSocketAddress
+				// and InetAddress, about 90 bytes, no public API reads the sender into an
+				// existing object. Everything after this doesn't allocate.
+				final InetSocketAddress sender = (InetSocketAddress)channel.receive(buffer);
+				
+				if(sender == null) {
+					pool.release(buffer);
+					break;
+				}
+				
+				buffer.flip();
+				
+				batch[count] = buffer;
+				senders[count] = sender;
+				count++;
+			}
+			
+			for(int i = 0; i < count; i++) {
+				UDPChannelServer.this.receive(senders[i].getAddress(), senders[i].getPort(),
+						batch[i]);
+				
+				pool.release(batch[i]);
+				
+				batch[i] = null;
+				senders[i] = null;
+			}
+			
+			return count;
+		}
+		
+		public void close() {
+			try {
+				channel.close();
+				
+				if(selector != null) {
+					selector.wakeup();
+					selector.close();
+				}
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
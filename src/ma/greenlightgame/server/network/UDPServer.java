@@ -1,21 +1,35 @@
 package ma.greenlightgame.server.network;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 
+import ma.greenlightgame.common.config.Config;
+import ma.greenlightgame.common.network.LinkConditioner;
+import ma.greenlightgame.common.network.LinkConditioner.ILinkHandler;
+import ma.greenlightgame.common.network.Loopback;
+import ma.greenlightgame.common.network.Loopback.ILoopbackHandler;
 import ma.greenlightgame.common.network.NetworkData;
 
-public class UDPServer implements Runnable {
-	private IUDPServerHandler handler;
+public abstract class UDPServer implements Runnable {
+	public static final String ENGINE_SOCKET = "socket";
+	public static final String ENGINE_CHANNEL = "channel";
 	
-	private DatagramSocket socket;
+	protected IUDPServerHandler handler;
 	
-	private Thread thread;
+	protected Thread thread;
 	
-	public UDPServer(int port, IUDPServerHandler handler) throws IOException {
+	// Null unless the link is being simulated
+	protected LinkConditioner conditioner;
+	
+	private ILinkHandler conditionedSend;
+	private ILinkHandler conditionedReceive;
+	
+	// Link to the client of the player hosting, if there is one
+	protected Loopback loopback;
+	
+	protected UDPServer(int port, IUDPServerHandler handler) {
 		if(port <= 0 || port > NetworkData.MAX_PORT)
 			throw new IndexOutOfBoundsException("The port " + port + " is out of bounds (0-"
 					+ NetworkData.MAX_PORT + ")");
@@ -24,65 +38,92 @@ public class UDPServer implements Runnable {
 		
 		System.out.println("Starting server on port: " + port);
 		
-		socket = new DatagramSocket(port);
-		socket.setSoTimeout(NetworkData.SO_TIMEOUT);
-		socket.setReceiveBufferSize(NetworkData.BUFFER_SIZE);
-		socket.setSendBufferSize(NetworkData.BUFFER_SIZE);
+		conditioner = LinkConditioner.create(LinkConditioner.SERVER);
 		
-		if(socket == null || socket.isClosed())
-			return;
+		conditionedSend = new ILinkHandler() {
+			@Override
+			public void onPacketDelivered(InetSocketAddress address, ByteBuffer packet)
+					throws IOException {
+				sendPacket(address, packet);
+			}
+		};
+		
+		conditionedReceive = new ILinkHandler() {
+			@Override
+			public void onPacketDelivered(InetSocketAddress address, ByteBuffer packet) {
+				UDPServer.this.handler.onMesssageReceived(UDPServer.this, address.getAddress(),
+						address.getPort(), packet);
+			}
+		};
 		
+		loopback = Loopback.bind(port, new ILoopbackHandler() {
+			@Override
+			public void onPacketReceived(InetSocketAddress address, ByteBuffer packet) {
+				UDPServer.this.handler.onMesssageReceived(UDPServer.this, address.getAddress(),
+						address.getPort(), packet);
+			}
+		});
+	}
+	
+	protected void start() {
 		thread = new Thread(this);
 		thread.start();
 	}
 	
-	@Override
-	public void run() {
-		System.out.println("Server started");
-		
-		while(!socket.isClosed()) {
-			byte[] buffer = new byte[NetworkData.BUFFER_SIZE];
-			
-			try {
-				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-				socket.receive(packet);
-				
-				handler.onMesssageReceived(this, packet.getAddress(), packet.getPort(),
-						packet.getData());
-			} catch(IOException e) {
-				if(!(e instanceof SocketTimeoutException)) {
-					if(!socket.isClosed()) {
-						e.printStackTrace();
-					}
-				}
-			}
-		}
+	public void send(InetAddress address, int port, ByteBuffer message) throws IOException {
+		send(new InetSocketAddress(address, port), message);
 	}
 	
-	public void send(InetAddress address, int port, byte[] message) throws IOException {
-		if(socket.isClosed())
+	public void send(InetSocketAddress address, ByteBuffer message) throws IOException {
+		if(loopback.isClient(address)) {
+			loopback.sendToClient(address, message);
 			return;
+		}
 		
-		if(message.length >= NetworkData.BUFFER_SIZE)
+		if(conditioner != null) {
+			conditioner.send(conditionedSend, address, message);
 			return;
+		}
 		
-		DatagramPacket packet = new DatagramPacket(message, message.length, address, port);
-		socket.send(packet);
+		sendPacket(address, message);
 	}
 	
-	public void close() {
-		if(socket.isClosed())
+	// Called by the receiving threads for every datagram
+	protected void receive(InetAddress address, int port, ByteBuffer message) {
+		if(conditioner != null) {
+			conditioner.receive(conditionedReceive, new InetSocketAddress(address, port), message);
 			return;
+		}
+		
+		handler.onMesssageReceived(this, address, port, message);
+	}
+	
+	protected abstract void sendPacket(InetSocketAddress address, ByteBuffer message)
+			throws IOException;
+	
+	public abstract void close();
+	
+	public static UDPServer create(int port, IUDPServerHandler handler) throws IOException {
+		final String engine = Config.getString(Config.SERVER_ENGINE);
 		
-		System.out.println("Stopping server...");
+		if(engine.equals(ENGINE_CHANNEL))
+			return new UDPChannelServer(port, handler);
 		
-		socket.close();
-		thread.interrupt();
+		if(!engine.equals(ENGINE_SOCKET)) {
+			System.err.println("Unknown server engine: " + engine + ", using " + ENGINE_SOCKET);
+		}
+		
+		if(Config.getInt(Config.SERVER_SOCKETS) > 1) {
+			System.err.println("Multiple sockets need the " + ENGINE_CHANNEL
+					+ " engine, using a single socket");
+		}
 		
-		System.out.println("Server stopped");
+		return new UDPSocketServer(port, handler);
 	}
 	
 	public interface IUDPServerHandler {
-		void onMesssageReceived(UDPServer server, InetAddress address, int port, byte[] message);
+		// Called by any number of threads at once, but packets of a peer always come from the same
+		// one. The message is only valid for the duration of the call.
+		void onMesssageReceived(UDPServer server, InetAddress address, int port, ByteBuffer message);
 	}
 }
@@ -1,166 +1,141 @@
 package ma.greenlightgame.server.network;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
+import ma.greenlightgame.common.network.Connection;
+import ma.greenlightgame.common.network.Connection.IMessageHandler;
+import ma.greenlightgame.common.network.NetworkCodec;
 import ma.greenlightgame.common.network.NetworkData;
 import ma.greenlightgame.common.network.NetworkData.NetworkMessage;
-import ma.greenlightgame.common.utils.Utils;
-import ma.greenlightgame.server.Server;
-import ma.greenlightgame.server.client.ClientHandler;
 import ma.greenlightgame.server.client.ServerClientData;
+import ma.greenlightgame.server.metrics.ServerMetrics;
 import ma.greenlightgame.server.network.UDPServer.IUDPServerHandler;
+import ma.greenlightgame.server.room.Room;
+import ma.greenlightgame.server.room.RoomManager;
 
-public class UDPServerHandler implements IUDPServerHandler {
-	private ClientHandler clientHandler;
+// Hands packets to the room of their session, peers without a session can only join a room
+public class UDPServerHandler implements IUDPServerHandler, IMessageHandler {
+	private RoomManager roomManager;
 	
-	public UDPServerHandler() {
-		clientHandler = new ClientHandler();
+	private NetworkCodec codec;
+	
+	private ByteBuffer unconnectedPacket;
+	
+	// Peer of the unconnected packet being handled
+	private UDPServer server;
+	private InetAddress senderAddress;
+	private int senderPort;
+	
+	public UDPServerHandler(RoomManager roomManager) {
+		this.roomManager = roomManager;
+		
+		codec = new NetworkCodec();
+		unconnectedPacket = ByteBuffer.allocate(NetworkData.MAX_PACKET_SIZE);
 	}
 	
+	// Packets of clients with a session go to their room without taking a lock, so the receiving
+	// threads only meet at the connection of a client and the queue of its room
 	@Override
-	public void onMesssageReceived(UDPServer server, InetAddress address, int port, byte[] message) {
-		String[] msg = Utils.bytesToString(message).split(NetworkData.SEPERATOR);
+	public void onMesssageReceived(UDPServer server, InetAddress address, int port,
+			ByteBuffer packet) {
+		if(!packet.hasRemaining())
+			return;
 		
-		int type = toInt(msg[0]);
+		final long now = System.nanoTime();
 		
-		switch(type) {
-		case NetworkMessage.CLIENT_REQUEST_CONNECT:
-			onClientRequestedJoin(address, port);
-			break;
-		case NetworkMessage.PLAYER_INFO:
-			onPlayerInfoReceived(toInt(msg[1]), toInt(msg[2]), toInt(msg[3]), toFloat(msg[4]),
-					toFloat(msg[5]), toFloat(msg[6]));
-			break;
-		case NetworkMessage.PLAYER_COLLISION:
-			onPlayerCollision(toInt(msg[1]), toInt(msg[2]), toInt(msg[3]), toBool(msg[4]));
-			break;
-		case NetworkMessage.PLAYER_ATTACK:
-			onPlayerAttack(toInt(msg[1]), toInt(msg[2]), toBool(msg[3]));
-			break;
-		case NetworkMessage.PLAYER_HIT:
-			onPlayerHit(toInt(msg[1]), toInt(msg[2]));
-			break;
-		default:
-			System.err.println("Server received an unsupported message type: " + type);
-			break;
+		ServerMetrics.get().onPacketIn(packet.remaining());
+		
+		ServerClientData client = roomManager.getClient(address, port);
+		
+		if(client == null) {
+			final int start = packet.position();
+			
+			client = receiveUnconnected(server, address, port, packet);
+			
+			if(client == null)
+				return;
+			
+			packet.position(start);
 		}
-	}
-	
-	public void destroy() {
-		clientHandler.destroy();
-	}
-	
-	public void startGame(int levelId) {
-		clientHandler.generatePlayerPositions(levelId);
 		
-		broadcastUDP(NetworkMessage.GAME_START, levelId);
-	}
-	
-	public void broadcastUDP(int type, Object... message) {
-		final ServerClientData[] clients = clientHandler.getClients();
+		final Room room = roomManager.getRoom(client.getRoomID());
 		
-		for(ServerClientData client : clients)
-			if(client != null) {
-				Server.sendUDP(client.getAddress(), client.getPort(), type, message);
-			}
+		if(room != null) {
+			room.onPacketReceived(client, packet, now);
+		}
 	}
 	
-	// TODO: This method should be TCP
-	private void onClientRequestedJoin(InetAddress address, int port) {
-		// Check if the server is currently in-game
-		if(Server.isStarted()) {
-			Server.sendUDP(address, port, NetworkMessage.CLIENT_REJECTED, 0);
-			return;
-		}
+	// Returns the session of the peer if the packet created or moved one
+	private synchronized ServerClientData receiveUnconnected(UDPServer server,
+			InetAddress address, int port, ByteBuffer packet) {
+		this.server = server;
+		senderAddress = address;
+		senderPort = port;
 		
-		// Check if the server is full
-		if(clientHandler.getNumClients() >= clientHandler.getMaxClients()) {
-			Server.sendUDP(address, port, NetworkMessage.CLIENT_REJECTED, 1);
-			return;
+		if(!Connection.receiveUnconnected(packet, this)) {
+			ServerMetrics.get().onDecodeError();
+			System.err.println("Server received a malformed packet from " + address + ":"
+					+ port);
 		}
 		
-		// Check if client with same IP and port is already ingame
-		final ServerClientData[] clients = clientHandler.getClients();
-		for(ServerClientData client : clients) {
-			if(client != null) {
-				String cAddress = client.getAddress().getCanonicalHostName();
-				
-				if(cAddress.equals(address.getCanonicalHostName()) && client.getPort() == port) {
-					Server.sendUDP(address, port, NetworkMessage.CLIENT_REJECTED, 2);
-					return;
-				}
-			}
-		}
+		this.server = null;
+		senderAddress = null;
 		
-		onClientJoin(address, port);
+		// Let the connection of a client that just joined or moved ack the packet
+		return roomManager.getClient(address, port);
 	}
 	
-	// TODO: This method should be TCP
-	private void onClientJoin(InetAddress address, int port) {
-		final int clientId = clientHandler.getFreeClientID();
-		
-		ServerClientData client = new ServerClientData(clientId, address, port);
-		
-		Server.sendUDP(client.getAddress(), client.getPort(), NetworkMessage.CLIENT_ACCEPTED,
-				clientId);
-		broadcastUDP(NetworkMessage.CLIENT_JOINED, clientId);
-		
-		final ServerClientData[] clients = clientHandler.getClients();
-		for(ServerClientData c : clients) {
-			if(c != null) {
-				Server.sendUDP(c.getAddress(), c.getPort(), NetworkMessage.PLAYER_INFO,
-						client.getID(), client.getX(), client.getY(), client.getVelocityX(),
-						client.getVelocityY(), client.getRotation());
-				Server.sendUDP(client.getAddress(), client.getPort(), NetworkMessage.CLIENT_JOINED,
-						c.getID());
-				Server.sendUDP(client.getAddress(), client.getPort(), NetworkMessage.PLAYER_INFO,
-						c.getID(), c.getX(), c.getY(), c.getVelocityX(), c.getVelocityY(),
-						c.getRotation());
-			}
+	@Override
+	public boolean onFrameReceived(ByteBuffer message) {
+		final int type = NetworkCodec.decodeType(message);
+		
+		if(type < 0)
+			return false;
+		
+		switch(type) {
+		case NetworkMessage.CLIENT_REQUEST_CONNECT:
+			onClientRequestedJoin(NetworkCodec.getRoom(message));
+			break;
+		case NetworkMessage.HEARTBEAT:
+			roomManager.moveSession(NetworkCodec.getToken(message), senderAddress, senderPort);
+			break;
+		default:
+			// Everything else needs a session
+			break;
 		}
 		
-		clientHandler.addClient(clientId, client);
+		return true;
 	}
 	
-	private void onPlayerInfoReceived(int id, int x, int y, float velocityX, float velocityY,
-			float rotation) {
-		final ServerClientData client = clientHandler.getClient(id);
+	private void onClientRequestedJoin(int roomId) {
+		// Join requests are resent until acked, the first one might have made it already
+		if(roomManager.getClient(senderAddress, senderPort) != null)
+			return;
+		
+		final Room room = roomManager.getOrCreateRoom(roomId);
 		
-		if(client == null)
+		if(room == null) {
+			reject(3);
 			return;
+		}
 		
-		client.setRotation(rotation);
-		client.setX(x);
-		client.setY(y);
-		client.setVelocityX(velocityX);
-		client.setVelocityY(velocityY);
+		final int result = room.join(server, senderAddress, senderPort);
 		
-		broadcastUDP(NetworkMessage.PLAYER_INFO, id, x, y, velocityX, velocityY, rotation);
-	}
-	
-	private void onPlayerCollision(int id, int x, int y, boolean colliding) {
-		broadcastUDP(NetworkMessage.PLAYER_COLLISION, id, x, y, colliding);
-	}
-	
-	private void onPlayerAttack(int id, int side, boolean attacking) {
-		broadcastUDP(NetworkMessage.PLAYER_ATTACK, id, side, attacking);
+		if(result != Room.JOINED) {
+			reject(result);
+		}
 	}
 	
-	private void onPlayerHit(int id, int fromId) {
-		ServerClientData client = clientHandler.getClient(id);
+	private void reject(int reason) {
+		ServerMetrics.get().onRejectedJoin();
 		
-		Server.sendUDP(client.getAddress(), client.getPort(), NetworkMessage.PLAYER_HIT, fromId);
-	}
-	
-	private float toFloat(String string) {
-		return Float.parseFloat(string);
-	}
-	
-	private int toInt(String string) {
-		return Integer.parseInt(string);
-	}
-	
-	private boolean toBool(String string) {
-		return Boolean.parseBoolean(string);
+		try {
+			server.send(senderAddress, senderPort, Connection.wrapUnconnected(
+					codec.encode(NetworkMessage.CLIENT_REJECTED, reason), unconnectedPacket));
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
 	}
 }
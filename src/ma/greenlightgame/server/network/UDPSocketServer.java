@@ -0,0 +1,100 @@
+package ma.greenlightgame.server.network;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import ma.greenlightgame.common.config.Config;
+import ma.greenlightgame.common.network.NetworkData;
+
+public class UDPSocketServer extends UDPServer {
+	private DatagramSocket socket;
+	
+	private DatagramPacket receivePacket;
+	private DatagramPacket sendPacket;
+	
+	private ByteBuffer receiveBuffer;
+	
+	public UDPSocketServer(int port, IUDPServerHandler handler) throws IOException {
+		super(port, handler);
+		
+		socket = new DatagramSocket(port);
+		socket.setSoTimeout(NetworkData.SO_TIMEOUT);
+		socket.setReceiveBufferSize(Config.getInt(Config.SOCKET_RECEIVE_BUFFER));
+		socket.setSendBufferSize(Config.getInt(Config.SOCKET_SEND_BUFFER));
+		
+		receivePacket = new DatagramPacket(new byte[NetworkData.BUFFER_SIZE], NetworkData.BUFFER_SIZE);
+		receiveBuffer = ByteBuffer.wrap(receivePacket.getData());
+		sendPacket = new DatagramPacket(new byte[0], 0);
+		
+		if(socket == null || socket.isClosed())
+			return;
+		
+		start();
+	}
+	
+	@Override
+	public void run() {
+		System.out.println("Server started");
+		
+		while(!socket.isClosed()) {
+			try {
+				receivePacket.setLength(NetworkData.BUFFER_SIZE);
+				socket.receive(receivePacket);
+				
+				receiveBuffer.clear();
+				receiveBuffer.limit(receivePacket.getLength());
+				
+				receive(receivePacket.getAddress(), receivePacket.getPort(), receiveBuffer);
+			} catch(IOException e) {
+				if(!(e instanceof SocketTimeoutException)) {
+					if(!socket.isClosed()) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+	
+	@Override
+	protected void sendPacket(InetSocketAddress address, ByteBuffer message) throws IOException {
+		if(socket.isClosed())
+			return;
+		
+		if(message.remaining() > NetworkData.BUFFER_SIZE) {
+			System.err.println("Dropped a packet of " + message.remaining()
+					+ " bytes, larger than a datagram");
+			return;
+		}
+		
+		synchronized(sendPacket) {
+			sendPacket.setData(message.array(), message.arrayOffset() + message.position(),
+					message.remaining());
+			sendPacket.setSocketAddress(address);
+			
+			socket.send(sendPacket);
+		}
+	}
+	
+	@Override
+	public void close() {
+		if(socket.isClosed())
+			return;
+		
+		System.out.println("Stopping server...");
+		
+		loopback.close();
+		
+		if(conditioner != null) {
+			conditioner.close();
+		}
+		
+		socket.close();
+		thread.interrupt();
+		
+		System.out.println("Server stopped");
+	}
+}
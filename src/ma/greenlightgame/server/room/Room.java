@@ -0,0 +1,493 @@
+package ma.greenlightgame.server.room;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import ma.greenlightgame.common.config.Config;
+import ma.greenlightgame.common.network.Connection.IMessageHandler;
+import ma.greenlightgame.common.network.MessageQueue;
+import ma.greenlightgame.common.network.MessageQueue.IMessageConsumer;
+import ma.greenlightgame.common.network.NetworkCodec;
+import ma.greenlightgame.common.network.NetworkData.InputButton;
+import ma.greenlightgame.common.network.NetworkData.NetworkMessage;
+import ma.greenlightgame.common.network.Snapshot;
+import ma.greenlightgame.common.utils.Utils;
+import ma.greenlightgame.server.client.ClientHandler;
+import ma.greenlightgame.server.client.InputBuffer;
+import ma.greenlightgame.server.client.ServerClientData;
+import ma.greenlightgame.server.metrics.ServerMetrics;
+import ma.greenlightgame.server.network.InterestManager;
+import ma.greenlightgame.server.network.SnapshotEncoder;
+import ma.greenlightgame.server.network.SnapshotScheduler;
+import ma.greenlightgame.server.network.UDPServer;
+
+// A single match, everything in here runs under the lock of the room. Network threads only
+// queue the messages of its clients, they are handled at the start of the next tick.
+public class Room implements IMessageConsumer<ServerClientData> {
+	public static final int JOINED = -1;
+	
+	private static final int QUEUE_SIZE = 1024;
+	
+	// Clients only send small messages, anything larger is dropped
+	private static final int MAX_MESSAGE_SIZE = 128;
+	
+	private final int id;
+	
+	private final RoomManager manager;
+	
+	private ClientHandler clientHandler;
+	
+	private InterestManager interestManager;
+	
+	private SnapshotScheduler scheduler;
+	
+	private SnapshotEncoder snapshotEncoder;
+	
+	private NetworkCodec codec;
+	
+	private MessageQueue<ServerClientData> messages;
+	
+	// Client of the message being handled
+	private ServerClientData sender;
+	
+	private boolean ingame;
+	
+	private int tick;
+	
+	public Room(int id, RoomManager manager) {
+		this.id = id;
+		this.manager = manager;
+		
+		clientHandler = new ClientHandler();
+		interestManager = new InterestManager(clientHandler.getMaxClients(),
+				Config.getInt(Config.INTEREST_RADIUS), Config.getInt(Config.INTEREST_HYSTERESIS));
+		scheduler = new SnapshotScheduler(clientHandler.getMaxClients(),
+				Config.getInt(Config.INTEREST_RADIUS));
+		codec = new NetworkCodec();
+		snapshotEncoder = new SnapshotEncoder(codec, clientHandler.getMaxClients());
+		messages = new MessageQueue<ServerClientData>(QUEUE_SIZE, MAX_MESSAGE_SIZE);
+		
+		ingame = false;
+	}
+	
+	// Called by the network threads, doesn't take the lock of the room
+	public void onPacketReceived(ServerClientData client, ByteBuffer packet, long now) {
+		// The session might have been evicted since it was looked up
+		if(clientHandler.getClient(client.getID()) != client)
+			return;
+		
+		client.setLastReceived(now);
+		
+		if(!client.getConnection().receive(packet, client.getReceiver())) {
+			System.err.println("Room " + id + " received a malformed packet from "
+					+ client.getAddress() + ":" + client.getPort());
+		}
+		
+		// Acks go out right away
+		client.flush(now);
+	}
+	
+	// Queues a frame of a received packet, returns false if it is malformed
+	private boolean queue(ServerClientData client, ByteBuffer message) {
+		final int start = message.position();
+		final int type = NetworkCodec.decodeType(message);
+		
+		if(type < 0) {
+			ServerMetrics.get().onDecodeError();
+			return false;
+		}
+		
+		// The pong tells how long the ping waited for the tick
+		if(type == NetworkMessage.PING) {
+			client.setPingReceived(client.getLastReceived());
+		}
+		
+		message.position(start);
+		
+		if(!messages.offer(client, message)) {
+			ServerMetrics.get().onDroppedMessage();
+		}
+		
+		return true;
+	}
+	
+	@Override
+	public void onMessage(ServerClientData client, ByteBuffer message) {
+		// The session might have been evicted since the message arrived
+		if(clientHandler.getClient(client.getID()) != client)
+			return;
+		
+		sender = client;
+		
+		if(!handleMessage(message)) {
+			ServerMetrics.get().onDecodeError();
+			System.err.println("Room " + id + " received a malformed message from "
+					+ client.getAddress() + ":" + client.getPort());
+		}
+		
+		sender = null;
+	}
+	
+	private boolean handleMessage(ByteBuffer message) {
+		final int type = NetworkCodec.decodeType(message);
+		
+		// Count the type byte as well
+		ServerMetrics.get().onMessageIn(type, message.remaining() + 1);
+		
+		switch(type) {
+		case NetworkMessage.CLIENT_REQUEST_CONNECT:
+		case NetworkMessage.HEARTBEAT:
+			// Handled before the packet reaches the room
+			break;
+		case NetworkMessage.PING:
+			onPing(NetworkCodec.getTick(message), NetworkCodec.getTime(message),
+					NetworkCodec.getTime(message), NetworkCodec.getTime(message));
+			break;
+		case NetworkMessage.PLAYER_STATE:
+			onPlayerStateReceived(NetworkCodec.getId(message), NetworkCodec.getTick(message),
+					NetworkCodec.getPosition(message), NetworkCodec.getPosition(message),
+					NetworkCodec.getVelocity(message), NetworkCodec.getVelocity(message),
+					NetworkCodec.getRotation(message));
+			break;
+		case NetworkMessage.SNAPSHOT_ACK:
+			onSnapshotAck(NetworkCodec.getTick(message));
+			break;
+		case NetworkMessage.PLAYER_COLLISION:
+			onPlayerCollision(NetworkCodec.getId(message), NetworkCodec.getPosition(message),
+					NetworkCodec.getPosition(message), NetworkCodec.getBool(message));
+			break;
+		case NetworkMessage.PLAYER_INPUT:
+			return onPlayerInputReceived(NetworkCodec.getTick(message),
+					NetworkCodec.getByte(message), message);
+		case NetworkMessage.PLAYER_ATTACK:
+			onPlayerAttack(NetworkCodec.getId(message), NetworkCodec.getByte(message),
+					NetworkCodec.getBool(message));
+			break;
+		case NetworkMessage.PLAYER_HIT:
+			onPlayerHit(NetworkCodec.getId(message), NetworkCodec.getId(message));
+			break;
+		default:
+			ServerMetrics.get().onUnsupportedType();
+			System.err.println("Room " + id + " received an unsupported message type: " + type);
+			break;
+		}
+		
+		return true;
+	}
+	
+	public synchronized void onTick() {
+		final long start = System.nanoTime();
+		
+		messages.drain(this);
+		
+		if(clientHandler.getNumClients() == 0)
+			return;
+		
+		final ServerClientData[] clients = clientHandler.getClients();
+		
+		evictIdleClients(clients);
+		
+		for(ServerClientData client : clients) {
+			if(client != null) {
+				processInputs(client);
+			}
+		}
+		
+		interestManager.update(clients);
+		snapshotEncoder.begin(NetworkCodec.toTime(start));
+		
+		for(ServerClientData client : clients) {
+			if(client != null) {
+				sendSnapshot(client, clients, start);
+			}
+		}
+		
+		tick++;
+		
+		flush();
+		
+		ServerMetrics.get().onTick(System.nanoTime() - start);
+	}
+	
+	// Clients that used up their bandwidth skip the snapshot of this tick
+	private void sendSnapshot(ServerClientData client, ServerClientData[] clients, long now) {
+		final Snapshot snapshot = scheduler.schedule(client, clients, interestManager, tick,
+				client.getBandwidth().refill(now));
+		
+		if(snapshot == null)
+			return;
+		
+		final Snapshot baseline = client.getSnapshots().get(client.getAckedSnapshot());
+		
+		client.send(snapshotEncoder.encode(snapshot, baseline, client.getLastInput()));
+		client.setLastSnapshot(tick);
+	}
+	
+	private void evictIdleClients(ServerClientData[] clients) {
+		final long now = System.nanoTime();
+		final long timeout = Config.getInt(Config.SESSION_TIMEOUT) * 1000000L;
+		
+		for(ServerClientData client : clients) {
+			if(client != null && now - client.getLastReceived() > timeout) {
+				System.out.println("Client " + client.getID() + " in room " + id + " timed out");
+				
+				removeClient(client);
+				broadcastUDP(codec.encode(NetworkMessage.CLIENT_LEFT, client.getID()));
+			}
+		}
+		
+		// An empty room can host a new match
+		if(clientHandler.getNumClients() == 0) {
+			ingame = false;
+		}
+	}
+	
+	public synchronized void destroy() {
+		final ServerClientData[] clients = clientHandler.getClients();
+		
+		for(ServerClientData client : clients)
+			if(client != null) {
+				manager.removeSession(client);
+				ServerMetrics.get().onClientLeft();
+			}
+		
+		clientHandler.destroy();
+	}
+	
+	public synchronized void startGame(int levelId) {
+		ingame = true;
+		
+		clientHandler.generatePlayerPositions(levelId);
+		
+		final ServerClientData[] clients = clientHandler.getClients();
+		
+		interestManager.update(clients);
+		
+		for(ServerClientData client : clients) {
+			if(client != null) {
+				broadcastUDP(codec.encodePlayerInfo(client.getID(), client.getX(), client.getY(),
+						client.getVelocityX(), client.getVelocityY(), client.getRotation()),
+						client.getID());
+			}
+		}
+		
+		broadcastUDP(codec.encode(NetworkMessage.GAME_START, levelId));
+		
+		flush();
+	}
+	
+	// Broadcasts go over the reliable channel. The message is encoded once, every connection only
+	// copies it and adds its own frame and packet headers.
+	public void broadcastUDP(ByteBuffer message) {
+		final ServerClientData[] clients = clientHandler.getClients();
+		
+		for(ServerClientData client : clients)
+			if(client != null) {
+				client.sendReliable(message);
+			}
+	}
+	
+	// Only sends to clients that have the source within their area of interest
+	public void broadcastUDP(ByteBuffer message, int sourceId) {
+		final ServerClientData[] clients = clientHandler.getClients();
+		
+		for(ServerClientData client : clients)
+			if(client != null && interestManager.isVisible(client.getID(), sourceId)) {
+				client.sendReliable(message);
+			}
+	}
+	
+	private void flush() {
+		final ServerClientData[] clients = clientHandler.getClients();
+		final long now = System.nanoTime();
+		
+		for(ServerClientData client : clients)
+			if(client != null) {
+				client.flush(now);
+			}
+	}
+	
+	// Returns JOINED, or the reason the client was rejected
+	public synchronized int join(UDPServer server, InetAddress address, int port) {
+		// Check if the room is currently in-game
+		if(ingame)
+			return 0;
+		
+		// Check if the room is full
+		if(clientHandler.getNumClients() >= clientHandler.getMaxClients())
+			return 1;
+		
+		final int clientId = clientHandler.getFreeClientID();
+		final long token = manager.createToken(id, clientId);
+		
+		final ServerClientData client = new ServerClientData(clientId, id, token, address,
+				port, clientHandler.getMaxClients(), server);
+		
+		client.setReceiver(new IMessageHandler() {
+			@Override
+			public boolean onFrameReceived(ByteBuffer message) {
+				return queue(client, message);
+			}
+		});
+		
+		client.sendReliable(codec.encodeClientAccepted(clientId, token));
+		broadcastUDP(codec.encode(NetworkMessage.CLIENT_JOINED, clientId));
+		broadcastUDP(codec.encodePlayerInfo(client.getID(), client.getX(), client.getY(),
+				client.getVelocityX(), client.getVelocityY(), client.getRotation()));
+		
+		final ServerClientData[] clients = clientHandler.getClients();
+		for(ServerClientData c : clients) {
+			if(c != null) {
+				client.sendReliable(codec.encode(NetworkMessage.CLIENT_JOINED, c.getID()));
+				client.sendReliable(codec.encodePlayerInfo(c.getID(), c.getX(), c.getY(),
+						c.getVelocityX(), c.getVelocityY(), c.getRotation()));
+			}
+		}
+		
+		clientHandler.addClient(client);
+		manager.addSession(client);
+		
+		ServerMetrics.get().onClientJoined();
+		
+		return JOINED;
+	}
+	
+	public synchronized boolean moveClient(int clientId, long token, InetAddress address,
+			int port) {
+		final ServerClientData client = clientHandler.getClient(clientId);
+		
+		if(client == null || client.getToken() != token)
+			return false;
+		
+		manager.moveSession(client, address, port);
+		
+		System.out.println("Client " + clientId + " in room " + id + " moved to " + address + ":"
+				+ port);
+		
+		return true;
+	}
+	
+	private void removeClient(ServerClientData client) {
+		clientHandler.removeClient(client);
+		scheduler.clear(client.getID());
+		manager.removeSession(client);
+		
+		ServerMetrics.get().onClientLeft();
+	}
+	
+	private void onPlayerStateReceived(int id, int input, int x, int y, float velocityX,
+			float velocityY, float rotation) {
+		final ServerClientData client = clientHandler.getClient(id);
+		
+		// Players can only move themselves, states that got overtaken are dropped
+		if(client == null || client != sender || !client.setLastInput(input))
+			return;
+		
+		client.setRotation(rotation);
+		client.setX(x);
+		client.setY(y);
+		client.setVelocityX(velocityX);
+		client.setVelocityY(velocityY);
+	}
+	
+	// The ping waited in the queue until this tick, the pong tells the client for how long so
+	// it doesn't count as network delay. It is flushed right away so the time until the end of
+	// the tick doesn't count either.
+	private void onPing(int sequence, int time, int roundTripTime, int jitter) {
+		ServerMetrics.get().onPlayerLatency(roundTripTime, jitter);
+		sender.setLatency(roundTripTime, jitter);
+		
+		final long now = System.nanoTime();
+		
+		sender.send(codec.encodePong(sequence, time, NetworkCodec.toTime(sender.getPingReceived()),
+				NetworkCodec.toTime(now)));
+		sender.flush(now);
+	}
+	
+	// Acks only ever move the baseline of the client that sent them
+	private void onSnapshotAck(int tick) {
+		sender.setAckedSnapshot(tick);
+	}
+	
+	private void onPlayerCollision(int id, int x, int y, boolean colliding) {
+		if(clientHandler.getClient(id) == null)
+			return;
+		
+		broadcastUDP(codec.encodePlayerCollision(id, x, y, colliding), id);
+	}
+	
+	// Returns false if the message is cut short
+	private boolean onPlayerInputReceived(int sequence, int count, ByteBuffer message) {
+		if(message.remaining() < count * NetworkCodec.COMMAND_SIZE)
+			return false;
+		
+		final InputBuffer inputs = sender.getInputs();
+		
+		for(int i = 0; i < count; i++) {
+			final int age = NetworkCodec.getByte(message);
+			
+			inputs.put(sequence - age, NetworkCodec.getByte(message),
+					NetworkCodec.getRotation(message));
+		}
+		
+		return true;
+	}
+	
+	// Applies the commands that arrived since the last tick in order. Clients only send changes,
+	// a command holds until the next one.
+	private void processInputs(ServerClientData client) {
+		final InputBuffer inputs = client.getInputs();
+		
+		int sequence;
+		
+		while((sequence = inputs.next()) != 0) {
+			final int buttons = inputs.getButtons(sequence);
+			final float aim = inputs.getAim(sequence);
+			
+			client.setRotation(aim);
+			
+			if(((buttons ^ client.getButtons()) & InputButton.ATTACK) != 0) {
+				onPlayerAttack(client.getID(), Utils.getSide(aim),
+						(buttons & InputButton.ATTACK) != 0);
+			}
+			
+			client.setButtons(buttons);
+		}
+	}
+	
+	private void onPlayerAttack(int id, int side, boolean attacking) {
+		if(clientHandler.getClient(id) == null)
+			return;
+		
+		broadcastUDP(codec.encodePlayerAttack(id, side, attacking), id);
+	}
+	
+	private void onPlayerHit(int id, int fromId) {
+		ServerClientData client = clientHandler.getClient(id);
+		
+		if(client == null)
+			return;
+		
+		client.sendReliable(codec.encodePlayerHit(id, fromId));
+	}
+	
+	public synchronized ServerClientData getClient(int clientId) {
+		return clientHandler.getClient(clientId);
+	}
+	
+	public synchronized int getNumClients() {
+		return clientHandler.getNumClients();
+	}
+	
+	public int getMaxClients() {
+		return clientHandler.getMaxClients();
+	}
+	
+	public int getID() {
+		return id;
+	}
+	
+	public synchronized boolean isStarted() {
+		return ingame;
+	}
+}
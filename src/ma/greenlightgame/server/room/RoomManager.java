@@ -0,0 +1,146 @@
+package ma.greenlightgame.server.room;
+
+import java.net.InetAddress;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ma.greenlightgame.common.network.NetworkData;
+import ma.greenlightgame.server.TickLoop;
+import ma.greenlightgame.server.TickLoop.ITickHandler;
+import ma.greenlightgame.server.client.ServerClientData;
+import ma.greenlightgame.server.client.SessionTable;
+
+// Rooms are created on the first join and ticked by a fixed number of workers
+public class RoomManager {
+	// Tokens hold the session index in the low bits, the other 48 are the secret that has to be
+	// shown to move a session
+	private static final int INDEX_BITS = 16;
+	private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+	
+	private final AtomicReferenceArray<Room> rooms;
+	
+	private final SessionTable sessions;
+	
+	private final TickLoop[] workers;
+	
+	private final SecureRandom random;
+	
+	public RoomManager(int maxRooms, int numWorkers, int tickRate) {
+		if(maxRooms <= 0 || maxRooms * NetworkData.MAX_CLIENTS > INDEX_MASK + 1)
+			throw new IllegalArgumentException("Unsupported number of rooms: " + maxRooms);
+		
+		if(numWorkers <= 0)
+			throw new IllegalArgumentException("Need at least one worker: " + numWorkers);
+		
+		rooms = new AtomicReferenceArray<Room>(maxRooms);
+		sessions = new SessionTable(maxRooms * NetworkData.MAX_CLIENTS);
+		workers = new TickLoop[Math.min(numWorkers, maxRooms)];
+		random = new SecureRandom();
+		
+		for(int i = 0; i < workers.length; i++) {
+			workers[i] = new TickLoop(tickRate, new Worker(i), "Room worker " + i);
+		}
+	}
+	
+	public void start() {
+		for(TickLoop worker : workers) {
+			worker.start();
+		}
+		
+		System.out.println("Hosting up to " + rooms.length() + " rooms on " + workers.length
+				+ " workers");
+	}
+	
+	public void stop() {
+		for(TickLoop worker : workers) {
+			worker.stop();
+		}
+		
+		for(int i = 0; i < rooms.length(); i++) {
+			final Room room = rooms.getAndSet(i, null);
+			
+			if(room != null) {
+				room.destroy();
+			}
+		}
+	}
+	
+	public Room getRoom(int id) {
+		if(id < 0 || id >= rooms.length())
+			return null;
+		
+		return rooms.get(id);
+	}
+	
+	// Returns null if the ID is out of range
+	public Room getOrCreateRoom(int id) {
+		if(id < 0 || id >= rooms.length())
+			return null;
+		
+		Room room = rooms.get(id);
+		
+		if(room == null) {
+			rooms.compareAndSet(id, null, new Room(id, this));
+			room = rooms.get(id);
+		}
+		
+		return room;
+	}
+	
+	public long createToken(int roomId, int clientId) {
+		return (random.nextLong() & ~INDEX_MASK) | (roomId * NetworkData.MAX_CLIENTS + clientId);
+	}
+	
+	public synchronized void addSession(ServerClientData client) {
+		sessions.put(client);
+	}
+	
+	public synchronized void removeSession(ServerClientData client) {
+		sessions.remove(client);
+	}
+	
+	// Called by the network threads for every packet, so it doesn't lock
+	public ServerClientData getClient(InetAddress address, int port) {
+		return sessions.get(address, port);
+	}
+	
+	// Moves the session of a client that shows up from another address, for example after
+	// a NAT rebinding. Returns false if the token doesn't belong to a client.
+	public boolean moveSession(long token, InetAddress address, int port) {
+		final int index = (int)(token & INDEX_MASK);
+		final Room room = getRoom(index / NetworkData.MAX_CLIENTS);
+		
+		if(room == null)
+			return false;
+		
+		return room.moveClient(index % NetworkData.MAX_CLIENTS, token, address, port);
+	}
+	
+	// Called by the room that owns the client
+	synchronized void moveSession(ServerClientData client, InetAddress address, int port) {
+		sessions.move(client, address, port);
+	}
+	
+	public int getNumRooms() {
+		return rooms.length();
+	}
+	
+	private class Worker implements ITickHandler {
+		private final int index;
+		
+		public Worker(int index) {
+			this.index = index;
+		}
+		
+		@Override
+		public void onTick(int tick) {
+			for(int i = index; i < rooms.length(); i += workers.length) {
+				final Room room = rooms.get(i);
+				
+				if(room != null) {
+					room.onTick();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,515 @@
+package ma.greenlightgame.tools;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import ma.greenlightgame.common.config.Config;
+import ma.greenlightgame.common.network.Connection;
+import ma.greenlightgame.common.network.Connection.IMessageHandler;
+import ma.greenlightgame.common.network.Connection.IPacketSender;
+import ma.greenlightgame.common.network.NetworkCodec;
+import ma.greenlightgame.common.network.NetworkData;
+import ma.greenlightgame.common.network.NetworkData.InputButton;
+import ma.greenlightgame.common.network.NetworkData.NetworkMessage;
+
+// Headless load generator, every bot is a client with its own socket speaking the game protocol
+public class BotSwarm {
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	private static final long NANOS_PER_MILLI = 1000000L;
+	private static final long NANOS_PER_MICRO = 1000L;
+	
+	private static final long PING_INTERVAL = 250 * NANOS_PER_MILLI;
+	private static final long HEARTBEAT_INTERVAL = NetworkData.HEARTBEAT_INTERVAL * NANOS_PER_MILLI;
+	private static final long ATTACK_INTERVAL = 2 * NANOS_PER_SECOND;
+	private static final long HIT_INTERVAL = 3 * NANOS_PER_SECOND;
+	
+	// Pongs that take longer than this count as lost
+	private static final long PING_TIMEOUT = NANOS_PER_SECOND;
+	
+	private static final int PING_HISTORY = 16;
+	private static final int RTT_SAMPLES = 1 << 20;
+	
+	private final Bot[] bots;
+	
+	private final InetSocketAddress serverAddress;
+	
+	private final Selector selector;
+	
+	private final ByteBuffer receiveBuffer;
+	
+	private final NetworkCodec codec;
+	
+	private final long frameTime;
+	private final long connectInterval;
+	
+	private final long[] joinLatencies;
+	private int numJoined;
+	private int numRejected;
+	
+	private final long[] rtts;
+	private int numRtts;
+	private int intervalStart;
+	
+	private long pingsSent;
+	private long pongsReceived;
+	private long pingsLost;
+	
+	private long packetsIn;
+	private long packetsOut;
+	private long bytesIn;
+	private long bytesOut;
+	
+	public BotSwarm(InetAddress address, int port, int numBots, int rate, int connectRate)
+			throws IOException {
+		serverAddress = new InetSocketAddress(address, port);
+		selector = Selector.open();
+		receiveBuffer = ByteBuffer.allocateDirect(NetworkData.BUFFER_SIZE);
+		codec = new NetworkCodec();
+		
+		frameTime = NANOS_PER_SECOND / rate;
+		connectInterval = NANOS_PER_SECOND / connectRate;
+		
+		bots = new Bot[numBots];
+		joinLatencies = new long[numBots];
+		rtts = new long[RTT_SAMPLES];
+		
+		for(int i = 0; i < numBots; i++) {
+			bots[i] = new Bot(i);
+		}
+	}
+	
+	public void run(int seconds) throws IOException {
+		final long start = System.nanoTime();
+		final long end = start + seconds * NANOS_PER_SECOND;
+		
+		long nextFrame = start;
+		long nextReport = start + NANOS_PER_SECOND;
+		
+		long lastPacketsIn = 0;
+		long lastPacketsOut = 0;
+		long lastBytesIn = 0;
+		long lastBytesOut = 0;
+		
+		int connected = 0;
+		
+		System.out.println("Running " + bots.length + " bots against " + serverAddress + " for "
+				+ seconds + "s");
+		
+		while(true) {
+			long now = System.nanoTime();
+			
+			if(now - end >= 0)
+				break;
+			
+			// Ramp up so the server isn't hit by every join request at once
+			while(connected < bots.length && now - start >= connected * connectInterval) {
+				bots[connected++].connect(now);
+			}
+			
+			if(now - nextFrame >= 0) {
+				for(int i = 0; i < connected; i++) {
+					bots[i].update(now);
+				}
+				
+				nextFrame += frameTime;
+				
+				if(now - nextFrame > frameTime) {
+					nextFrame = now + frameTime;
+				}
+			}
+			
+			if(now - nextReport >= 0) {
+				System.out.println(String.format(
+						"%3ds  joined %d/%d  in %d pkt/s %d KB/s  out %d pkt/s %d KB/s  rtt %s",
+						(now - start) / NANOS_PER_SECOND, numJoined, bots.length,
+						packetsIn - lastPacketsIn, (bytesIn - lastBytesIn) / 1024,
+						packetsOut - lastPacketsOut, (bytesOut - lastBytesOut) / 1024,
+						percentiles(rtts, intervalStart, numRtts)));
+				
+				lastPacketsIn = packetsIn;
+				lastPacketsOut = packetsOut;
+				lastBytesIn = bytesIn;
+				lastBytesOut = bytesOut;
+				intervalStart = numRtts;
+				
+				nextReport += NANOS_PER_SECOND;
+			}
+			
+			final long wait = (nextFrame - System.nanoTime()) / NANOS_PER_MILLI;
+			
+			if(wait > 0) {
+				selector.select(wait);
+			} else {
+				selector.selectNow();
+			}
+			
+			receive();
+		}
+		
+		report(System.nanoTime() - start);
+	}
+	
+	public void close() {
+		for(Bot bot : bots) {
+			bot.close();
+		}
+		
+		try {
+			selector.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private void receive() {
+		final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		
+		while(keys.hasNext()) {
+			final SelectionKey key = keys.next();
+			keys.remove();
+			
+			final Bot bot = (Bot)key.attachment();
+			
+			try {
+				while(true) {
+					receiveBuffer.clear();
+					
+					if(bot.channel.read(receiveBuffer) <= 0)
+						break;
+					
+					receiveBuffer.flip();
+					
+					packetsIn++;
+					bytesIn += receiveBuffer.remaining();
+					
+					if(!bot.connection.receive(receiveBuffer, bot)) {
+						System.err.println("Bot " + bot.index + " received a malformed packet");
+					}
+				}
+			} catch(PortUnreachableException e) {
+				// The server isn't up (yet), keep retrying
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private void report(long duration) {
+		final double seconds = (double)duration / NANOS_PER_SECOND;
+		final long answered = pongsReceived + pingsLost;
+		
+		System.out.println();
+		System.out.println("Bots:        " + numJoined + " joined, " + numRejected
+				+ " rejected, " + (bots.length - numJoined - numRejected) + " pending");
+		System.out.println("Join:        " + percentiles(joinLatencies, 0, numJoined));
+		System.out.println("Round trip:  " + percentiles(rtts, 0, numRtts));
+		System.out.println(String.format("Loss:        %.2f%% (%d of %d pings)",
+				answered == 0 ? 0.0 : 100.0 * pingsLost / answered, pingsLost, answered));
+		System.out.println(String.format(
+				"Server:      in %.0f pkt/s %.1f KB/s, out %.0f pkt/s %.1f KB/s",
+				packetsOut / seconds, bytesOut / seconds / 1024, packetsIn / seconds, bytesIn
+						/ seconds / 1024));
+	}
+	
+	private void recordRtt(long rtt) {
+		rtts[numRtts % RTT_SAMPLES] = rtt;
+		numRtts++;
+	}
+	
+	// Formats the percentiles of samples [from, to) in milliseconds
+	private static String percentiles(long[] samples, int from, int to) {
+		if(to - samples.length > from) {
+			from = to - samples.length;
+		}
+		
+		final int count = to - from;
+		
+		if(count <= 0)
+			return "-";
+		
+		final long[] sorted = new long[count];
+		
+		for(int i = 0; i < count; i++) {
+			sorted[i] = samples[(from + i) % samples.length];
+		}
+		
+		Arrays.sort(sorted);
+		
+		return String.format("p50 %.1fms  p90 %.1fms  p99 %.1fms  max %.1fms",
+				millis(sorted[count / 2]), millis(sorted[count * 9 / 10]),
+				millis(sorted[count * 99 / 100]), millis(sorted[count - 1]));
+	}
+	
+	private static double millis(long nanos) {
+		return (double)nanos / NANOS_PER_MILLI;
+	}
+	
+	private class Bot implements IPacketSender, IMessageHandler {
+		private final int index;
+		
+		private final DatagramChannel channel;
+		
+		private final Connection connection;
+		
+		private final long[] pingTimes;
+		
+		private int id;
+		private long token;
+		
+		private boolean joined;
+		private boolean rejected;
+		private boolean attacking;
+		
+		private long connectTime;
+		private long lastPing;
+		private long lastHeartbeat;
+		private long lastAttack;
+		private long lastHit;
+		
+		private int pingSequence;
+		private int oldestPing;
+		
+		// Of the last pong, in FIELD_TIME
+		private int roundTripTime;
+		
+		private int input;
+		
+		// Newest first, like they go out
+		private final int[] commandSequences;
+		private final int[] commandButtons;
+		private final float[] commandAims;
+		
+		private final int centerX;
+		private final int centerY;
+		
+		public Bot(int index) throws IOException {
+			this.index = index;
+			
+			channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().bind(null);
+			channel.connect(serverAddress);
+			channel.register(selector, SelectionKey.OP_READ, this);
+			
+			connection = new Connection(this);
+			pingTimes = new long[PING_HISTORY];
+			commandSequences = new int[NetworkData.INPUT_REDUNDANCY];
+			commandButtons = new int[NetworkData.INPUT_REDUNDANCY];
+			commandAims = new float[NetworkData.INPUT_REDUNDANCY];
+			
+			centerX = 200 + (index * 97) % 1500;
+			centerY = 300 + (index * 61) % 500;
+		}
+		
+		public void connect(long now) {
+			connectTime = now;
+			
+			connection.sendReliable(codec.encodeConnectRequest(index
+					/ NetworkData.MAX_CLIENTS));
+			connection.flush(now);
+		}
+		
+		// Scripted movement, each bot runs circles around its own center
+		public void update(long now) {
+			if(joined) {
+				final double angle = (now - connectTime) / (double)NANOS_PER_SECOND + index;
+				final int x = centerX + (int)(Math.cos(angle) * 150);
+				final int y = centerY + (int)(Math.sin(angle) * 150);
+				
+				final float aim = (float)Math.toDegrees(angle) % 360;
+				
+				if(now - lastAttack >= ATTACK_INTERVAL) {
+					lastAttack = now;
+					attacking = !attacking;
+				}
+				
+				sendInput(attacking ? InputButton.ATTACK : 0, aim);
+				
+				connection.send(codec.encodePlayerState(id, input, x, y,
+						(float)-Math.sin(angle) * 2.5f, (float)Math.cos(angle) * 2.5f, aim));
+				
+				if(now - lastPing >= PING_INTERVAL) {
+					sendPing(now);
+				}
+				
+				if(now - lastHeartbeat >= HEARTBEAT_INTERVAL) {
+					lastHeartbeat = now;
+					connection.send(codec.encodeHeartbeat(token));
+				}
+				
+				if(now - lastHit >= HIT_INTERVAL) {
+					lastHit = now;
+					connection.sendReliable(codec.encodePlayerHit(
+							(id + 1) % NetworkData.MAX_CLIENTS, id));
+				}
+			}
+			
+			if(!rejected) {
+				connection.flush(now);
+			}
+		}
+		
+		// The aim of a bot turns all the time, every update is a change of its commands
+		private void sendInput(int buttons, float aim) {
+			input++;
+			
+			System.arraycopy(commandSequences, 0, commandSequences, 1,
+					commandSequences.length - 1);
+			System.arraycopy(commandButtons, 0, commandButtons, 1, commandButtons.length - 1);
+			System.arraycopy(commandAims, 0, commandAims, 1, commandAims.length - 1);
+			
+			commandSequences[0] = input;
+			commandButtons[0] = buttons;
+			commandAims[0] = aim;
+			
+			connection.send(codec.encodePlayerInput(Math.min(input, NetworkData.INPUT_REDUNDANCY),
+					commandSequences, commandButtons, commandAims));
+		}
+		
+		private void sendPing(long now) {
+			// Anything that is about to be overwritten or took too long is lost
+			while(oldestPing < pingSequence
+					&& (pingSequence - oldestPing >= PING_HISTORY || now
+							- pingTimes[oldestPing % PING_HISTORY] > PING_TIMEOUT)) {
+				if(pingTimes[oldestPing % PING_HISTORY] != 0) {
+					pingsLost++;
+				}
+				
+				oldestPing++;
+			}
+			
+			lastPing = now;
+			pingTimes[pingSequence % PING_HISTORY] = now;
+			
+			connection.send(codec.encodePing(pingSequence++, NetworkCodec.toTime(now),
+					roundTripTime, 0));
+			pingsSent++;
+		}
+		
+		@Override
+		public void sendPacket(ByteBuffer packet) {
+			packetsOut++;
+			bytesOut += packet.remaining();
+			
+			try {
+				channel.write(packet);
+			} catch(PortUnreachableException e) {
+				// The server isn't up (yet), keep retrying
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		@Override
+		public boolean onFrameReceived(ByteBuffer message) {
+			final int type = NetworkCodec.decodeType(message);
+			
+			if(type < 0)
+				return false;
+			
+			switch(type) {
+			case NetworkMessage.CLIENT_ACCEPTED:
+				id = NetworkCodec.getId(message);
+				token = NetworkCodec.getToken(message);
+				
+				if(!joined) {
+					joined = true;
+					joinLatencies[numJoined++] = System.nanoTime() - connectTime;
+				}
+				break;
+			case NetworkMessage.CLIENT_REJECTED:
+				if(!rejected) {
+					rejected = true;
+					numRejected++;
+					
+					System.err.println("Bot " + index + " rejected, reason: "
+							+ NetworkCodec.getByte(message));
+				}
+				break;
+			case NetworkMessage.WORLD_SNAPSHOT:
+				connection.send(codec.encodeSnapshotAck(NetworkCodec.getTick(message)));
+				break;
+			case NetworkMessage.PONG:
+				final int sequence = NetworkCodec.getTick(message);
+				
+				// Bots keep the send times of their pings themselves
+				NetworkCodec.getTime(message);
+				
+				onPong(sequence, NetworkCodec.getTime(message), NetworkCodec.getTime(message));
+				break;
+			default:
+				break;
+			}
+			
+			return true;
+		}
+		
+		private void onPong(int sequence, int receiveTime, int sendTime) {
+			if(sequence < oldestPing || sequence >= pingSequence)
+				return;
+			
+			final int slot = sequence % PING_HISTORY;
+			
+			if(pingTimes[slot] == 0)
+				return;
+			
+			// Without the time the server held on to the ping
+			final long rtt = System.nanoTime() - pingTimes[slot]
+					- (sendTime - receiveTime) * NANOS_PER_MICRO;
+			
+			recordRtt(rtt);
+			roundTripTime = NetworkCodec.toTime(rtt);
+			pingTimes[slot] = 0;
+			pongsReceived++;
+		}
+		
+		public void close() {
+			try {
+				channel.close();
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			System.out.println("Usage: BotSwarm <host> <port> [bots=100] [seconds=30] [rate=30]"
+					+ " [joins per second=200]");
+			return;
+		}
+		
+		final InetAddress address = InetAddress.getByName(args[0]);
+		final int port = Integer.parseInt(args[1]);
+		final int numBots = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		final int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+		final int rate = args.length > 4 ? Integer.parseInt(args[4]) : 30;
+		final int connectRate = args.length > 5 ? Integer.parseInt(args[5]) : 200;
+		
+		// Every bot goes to the room of its index, assuming the server runs with the same config
+		Config.load();
+		
+		final int maxBots = Config.getInt(Config.MAX_ROOMS) * NetworkData.MAX_CLIENTS;
+		
+		if(numBots > maxBots) {
+			System.err.println("Only " + maxBots + " bots fit in " + Config.getInt(Config.MAX_ROOMS)
+					+ " rooms, the other " + (numBots - maxBots) + " will be rejected");
+		}
+		
+		final BotSwarm swarm = new BotSwarm(address, port, numBots, rate, connectRate);
+		
+		try {
+			swarm.run(seconds);
+		} finally {
+			swarm.close();
+		}
+	}
+}